@@ -0,0 +1,100 @@
+package com.indigobyte.deploy;
+
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * rsync-style signatures of fixed-size blocks of a file: a cheap rolling checksum to find candidate blocks at any
+ * offset and a strong hash to confirm them. The trailing partial block isn't signed.
+ */
+public class BlockSignatures implements Serializable {
+    private static final long serialVersionUID = 1L;
+    private static final HashFunction STRONG_HASH = Hashing.murmur3_128();
+
+    private final int blockSize;
+    @NotNull
+    private final int[] weak;
+    @NotNull
+    private final long[] strong;
+
+    BlockSignatures(int blockSize, @NotNull int[] weak, @NotNull long[] strong) {
+        this.blockSize = blockSize;
+        this.weak = weak;
+        this.strong = strong;
+    }
+
+    @NotNull
+    public static BlockSignatures compute(@NotNull Path file, int blockSize) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            int blockCount = (int) (channel.size() / blockSize);
+            int[] weak = new int[blockCount];
+            long[] strong = new long[blockCount];
+            ByteBuffer buffer = ByteBuffer.allocate(blockSize);
+            byte[] bytes = buffer.array();
+            for (int i = 0; i < blockCount; ++i) {
+                ((Buffer) buffer).clear();
+                while (buffer.hasRemaining()) {
+                    if (channel.read(buffer) == -1) {
+                        throw new IOException("File " + file + " was truncated while its signatures were calculated");
+                    }
+                }
+                weak[i] = weakChecksum(bytes, 0, blockSize);
+                strong[i] = strongChecksum(bytes, 0, blockSize);
+            }
+            return new BlockSignatures(blockSize, weak, strong);
+        }
+    }
+
+    public int getBlockSize() {
+        return blockSize;
+    }
+
+    public int getBlockCount() {
+        return weak.length;
+    }
+
+    public int getWeak(int block) {
+        return weak[block];
+    }
+
+    public long getStrong(int block) {
+        return strong[block];
+    }
+
+    /**
+     * Adler-like checksum used by rsync: low 16 bits are the sum of bytes, high 16 bits are the sum of prefix sums.
+     */
+    static int weakChecksum(@NotNull byte[] bytes, int offset, int length) {
+        int a = 0;
+        int b = 0;
+        for (int i = 0; i < length; ++i) {
+            a += bytes[offset + i] & 0xFF;
+            b += a;
+        }
+        return (a & 0xFFFF) | (b << 16);
+    }
+
+    /**
+     * Moves the window of {@link #weakChecksum(byte[], int, int)} one byte forward.
+     */
+    static int rollWeakChecksum(int checksum, int blockSize, byte out, byte in) {
+        int a = checksum & 0xFFFF;
+        int b = checksum >>> 16;
+        a = (a - (out & 0xFF) + (in & 0xFF)) & 0xFFFF;
+        b = (b - blockSize * (out & 0xFF) + a) & 0xFFFF;
+        return a | (b << 16);
+    }
+
+    static long strongChecksum(@NotNull byte[] bytes, int offset, int length) {
+        return STRONG_HASH.hashBytes(bytes, offset, length).asLong();
+    }
+}
@@ -4,9 +4,10 @@ import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
 import java.io.*;
+import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.util.Comparator;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.util.Objects;
 import java.util.TreeMap;
 import java.util.concurrent.atomic.AtomicInteger;
@@ -17,37 +18,134 @@ public class Checksum implements Serializable, Comparable<Checksum> {
     private final String filePath;
     private final boolean folder;
     private final long lastModified;
+    private final long size;
     @Nullable
     private final String digest;
-//    @Nullable
-//    private final TreeMap<String, Long> jarFilesCrc32;
+    @Nullable
+    private final TreeMap<String, Long> jarFilesCrc32;
+    @Nullable
+    private final BlockSignatures blockSignatures;
 
-    public Checksum(@NotNull Path file, @NotNull Path baseFolder, @Nullable Checksum oldChecksum, @NotNull AtomicInteger checksumsCalculated) throws IOException {
-        filePath = extractFilePath(file, baseFolder);
+    public Checksum(
+            @NotNull Path file,
+            @NotNull Path baseFolder,
+            @Nullable Checksum oldChecksum,
+            @NotNull DigestAlgorithm algorithm,
+            @NotNull AtomicInteger checksumsCalculated
+    ) throws IOException {
+        this(file, baseFolder, oldChecksum, algorithm, null, false, checksumsCalculated);
+    }
+
+    /**
+     * @param keepJarEntries whether CRCs of entries of a JAR file must be kept, so that only changed entries can be
+     *                       uploaded later
+     */
+    public Checksum(
+            @NotNull Path file,
+            @NotNull Path baseFolder,
+            @Nullable Checksum oldChecksum,
+            @NotNull DigestAlgorithm algorithm,
+            @Nullable FingerprintCache fingerprintCache,
+            boolean keepJarEntries,
+            @NotNull AtomicInteger checksumsCalculated
+    ) throws IOException {
+        this(file, oldChecksum != null ? oldChecksum.filePath : extractFilePath(file, baseFolder), oldChecksum, algorithm, fingerprintCache, keepJarEntries, checksumsCalculated);
+    }
+
+    /**
+     * @param filePath path of the file relative to the base folder, as {@link #extractFilePath(Path, Path)} returns it
+     */
+    Checksum(
+            @NotNull Path file,
+            @NotNull String filePath,
+            @Nullable Checksum oldChecksum,
+            @NotNull DigestAlgorithm algorithm,
+            @Nullable FingerprintCache fingerprintCache,
+            boolean keepJarEntries,
+            @NotNull AtomicInteger checksumsCalculated
+    ) throws IOException {
+        this.filePath = filePath;
         File file1 = file.toFile();
         folder = file1.isDirectory();
         lastModified = file1.lastModified();
+        size = folder ? 0 : file1.length();
+        boolean jar = !folder && isJar(file);
         if (folder) {
             digest = null;
+            jarFilesCrc32 = null;
+        } else if (oldChecksum != null && !oldChecksum.folder && oldChecksum.lastModified == lastModified) {
+            digest = oldChecksum.digest;
+            if (keepJarEntries && jar) {
+                jarFilesCrc32 = oldChecksum.jarFilesCrc32 != null ? oldChecksum.jarFilesCrc32 : Utils.getCrc32OfJarFile(file);
+            } else {
+                jarFilesCrc32 = null;
+            }
+        } else if (keepJarEntries && jar) {
+            // Reading CRCs from the central directory is as cheap as a fingerprint cache lookup
+            jarFilesCrc32 = Utils.getCrc32OfJarFile(file);
+            digest = getDigestOfJarEntries(jarFilesCrc32, algorithm);
+            checksumsCalculated.incrementAndGet();
         } else {
-            if (oldChecksum != null && !oldChecksum.folder && oldChecksum.lastModified == lastModified) {
-                digest = oldChecksum.digest;
-            } else if (!file.getName(file.getNameCount() - 1).toString().endsWith(".jar")) {
-                digest = Utils.getDigest(file);
-                checksumsCalculated.incrementAndGet();
-                //jarFilesCrc32 = null;
+            jarFilesCrc32 = null;
+            BasicFileAttributes attributes = null;
+            String cachedDigest = null;
+            if (fingerprintCache != null) {
+                attributes = Files.readAttributes(file, BasicFileAttributes.class);
+                cachedDigest = fingerprintCache.lookup(file, attributes);
+            }
+            if (cachedDigest != null) {
+                digest = cachedDigest;
             } else {
-                TreeMap<String, Long> crc32 = Utils.getCrc32OfJarFile(file);
-                try (ByteArrayOutputStream baos = new ByteArrayOutputStream()) {
-                    try (ObjectOutputStream ois = new ObjectOutputStream(baos)) {
-                        ois.writeObject(crc32);
-                    }
-                    try (ByteArrayInputStream bais = new ByteArrayInputStream(baos.toByteArray())) {
-                        digest = Utils.getDigest(bais);
-                        checksumsCalculated.incrementAndGet();
-                    }
+                digest = jar
+                        ? getDigestOfJarEntries(Utils.getCrc32OfJarFile(file), algorithm)
+                        : Utils.getDigest(file, algorithm);
+                checksumsCalculated.incrementAndGet();
+                if (fingerprintCache != null) {
+                    fingerprintCache.update(file, attributes, digest);
                 }
-//                jarFilesCrc32 = null;
+            }
+        }
+        // Signatures describe the content, so they remain valid while the digest doesn't change
+        blockSignatures = oldChecksum != null && digest != null && digest.equals(oldChecksum.digest)
+                ? oldChecksum.blockSignatures
+                : null;
+    }
+
+    Checksum(
+            @NotNull String filePath,
+            boolean folder,
+            long lastModified,
+            long size,
+            @Nullable String digest,
+            @Nullable TreeMap<String, Long> jarFilesCrc32,
+            @Nullable BlockSignatures blockSignatures
+    ) {
+        this.filePath = filePath;
+        this.folder = folder;
+        this.lastModified = lastModified;
+        this.size = size;
+        this.digest = digest;
+        this.jarFilesCrc32 = jarFilesCrc32;
+        this.blockSignatures = blockSignatures;
+    }
+
+    @NotNull
+    Checksum withBlockSignatures(@Nullable BlockSignatures blockSignatures) {
+        return new Checksum(filePath, folder, lastModified, size, digest, jarFilesCrc32, blockSignatures);
+    }
+
+    public static boolean isJar(@NotNull Path file) {
+        return file.getName(file.getNameCount() - 1).toString().endsWith(".jar");
+    }
+
+    @NotNull
+    private static String getDigestOfJarEntries(@NotNull TreeMap<String, Long> crc32, @NotNull DigestAlgorithm algorithm) throws IOException {
+        try (ByteArrayOutputStream baos = new ByteArrayOutputStream()) {
+            try (ObjectOutputStream ois = new ObjectOutputStream(baos)) {
+                ois.writeObject(crc32);
+            }
+            try (ByteArrayInputStream bais = new ByteArrayInputStream(baos.toByteArray())) {
+                return Utils.getDigest(bais, algorithm);
             }
         }
     }
@@ -102,12 +200,19 @@ public class Checksum implements Serializable, Comparable<Checksum> {
 
     @Override
     public int compareTo(@NotNull Checksum o) {
-        return Comparator
-                .comparing(Checksum::getFilePath)
-                .thenComparing(Checksum::isFolder)
-                .thenComparing(Checksum::getDigest, Comparator.nullsFirst(String::compareTo))
-                //.thenComparing(Checksum::getJarFilesCrc32, Comparator.nullsFirst(Comparator.comparing(Utils::toJson)))
-                .compare(this, o);
+        // Compared directly, because checksums of all files are sorted on every run
+        int result = filePath.compareTo(o.filePath);
+        if (result != 0) {
+            return result;
+        }
+        result = Boolean.compare(folder, o.folder);
+        if (result != 0) {
+            return result;
+        }
+        if (digest == null || o.digest == null) {
+            return digest == null ? (o.digest == null ? 0 : -1) : 1;
+        }
+        return digest.compareTo(o.digest);
     }
 
     @NotNull
@@ -119,13 +224,32 @@ public class Checksum implements Serializable, Comparable<Checksum> {
         return folder;
     }
 
+    public long getLastModified() {
+        return lastModified;
+    }
+
+    public long getSize() {
+        return size;
+    }
+
     @Nullable
     public String getDigest() {
         return digest;
     }
 
-//    @Nullable
-//    public TreeMap<String, Long> getJarFilesCrc32() {
-//        return jarFilesCrc32;
-//    }
+    /**
+     * @return CRCs of JAR entries keyed by entry name, or {@code null} if they weren't kept
+     */
+    @Nullable
+    public TreeMap<String, Long> getJarFilesCrc32() {
+        return jarFilesCrc32;
+    }
+
+    /**
+     * @return signatures of blocks of the file for delta transfer, or {@code null} if they weren't calculated
+     */
+    @Nullable
+    public BlockSignatures getBlockSignatures() {
+        return blockSignatures;
+    }
 }
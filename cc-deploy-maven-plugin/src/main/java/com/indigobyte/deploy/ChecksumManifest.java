@@ -0,0 +1,300 @@
+package com.indigobyte.deploy;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * Reads and writes checksum manifests. Binary layout (all integers are unsigned LEB128 varints unless stated):
+ * <pre>
+ * magic "CKSM" (4 bytes), format version (1 byte), digest algorithm id (1 byte, since version 2), entry count
+ * for each entry, sorted by path:
+ *     flags (1 byte), length of prefix shared with previous path, suffix length, suffix (UTF-8),
+ *     lastModified, size, digest length, digest bytes,
+ *     since version 3, if the entry has JAR entry CRCs: their count and, for each JAR entry sorted by name,
+ *     length of prefix shared with previous name, suffix length, suffix (UTF-8), CRC (4 bytes),
+ *     since version 4, if the entry has block signatures: block size, block count and, for each block,
+ *     weak checksum (4 bytes) and strong checksum (8 bytes)
+ * </pre>
+ * Digests are stored as raw bytes instead of hex strings. Manifests written by older plugin versions with Java
+ * serialization are still accepted by {@link #read(byte[])}; they, as well as version 1 manifests, always contain
+ * MD5 digests.
+ */
+public final class ChecksumManifest {
+    private static final byte[] MAGIC = {'C', 'K', 'S', 'M'};
+    private static final int VERSION = 4;
+
+    private static final int FLAG_FOLDER = 1;
+    private static final int FLAG_HAS_DIGEST = 1 << 1;
+    private static final int FLAG_TEXT_DIGEST = 1 << 2;
+    private static final int FLAG_JAR_ENTRIES = 1 << 3;
+    private static final int FLAG_BLOCK_SIGNATURES = 1 << 4;
+
+    @NotNull
+    private final DigestAlgorithm algorithm;
+    @NotNull
+    private final TreeSet<Checksum> checksums;
+
+    private ChecksumManifest(@NotNull DigestAlgorithm algorithm, @NotNull TreeSet<Checksum> checksums) {
+        this.algorithm = algorithm;
+        this.checksums = checksums;
+    }
+
+    @NotNull
+    public DigestAlgorithm getAlgorithm() {
+        return algorithm;
+    }
+
+    @NotNull
+    public TreeSet<Checksum> getChecksums() {
+        return checksums;
+    }
+
+    @NotNull
+    public static ChecksumManifest read(@NotNull byte[] bytes) throws IOException {
+        if (!hasMagic(bytes)) {
+            return new ChecksumManifest(DigestAlgorithm.MD5, readSerialized(bytes));
+        }
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes, MAGIC.length, bytes.length - MAGIC.length));
+        int version = in.readUnsignedByte();
+        DigestAlgorithm algorithm;
+        if (version == 1) {
+            algorithm = DigestAlgorithm.MD5;
+        } else if (version >= 2 && version <= VERSION) {
+            try {
+                algorithm = DigestAlgorithm.fromId(in.readUnsignedByte());
+            } catch (IllegalArgumentException e) {
+                throw new IOException("Unsupported checksum manifest: " + e.getMessage(), e);
+            }
+        } else {
+            throw new IOException("Unsupported checksum manifest version " + version);
+        }
+        int count = (int) readVarLong(in);
+        TreeSet<Checksum> result = new TreeSet<>();
+        byte[] pathBytes = new byte[256];
+        int pathLength = 0;
+        for (int i = 0; i < count; ++i) {
+            int flags = in.readUnsignedByte();
+            int prefixLength = (int) readVarLong(in);
+            int suffixLength = (int) readVarLong(in);
+            if (prefixLength > pathLength) {
+                throw new IOException("Corrupted checksum manifest: invalid path prefix at entry " + i);
+            }
+            pathLength = prefixLength + suffixLength;
+            if (pathLength > pathBytes.length) {
+                byte[] newPathBytes = new byte[Math.max(pathLength, pathBytes.length * 2)];
+                System.arraycopy(pathBytes, 0, newPathBytes, 0, prefixLength);
+                pathBytes = newPathBytes;
+            }
+            in.readFully(pathBytes, prefixLength, suffixLength);
+            String filePath = new String(pathBytes, 0, pathLength, StandardCharsets.UTF_8);
+            long lastModified = readVarLong(in);
+            long size = readVarLong(in);
+            String digest = null;
+            if ((flags & FLAG_HAS_DIGEST) != 0) {
+                byte[] digestBytes = new byte[(int) readVarLong(in)];
+                in.readFully(digestBytes);
+                digest = (flags & FLAG_TEXT_DIGEST) != 0
+                        ? new String(digestBytes, StandardCharsets.UTF_8)
+                        : Utils.getHex(digestBytes);
+            }
+            TreeMap<String, Long> jarFilesCrc32 = null;
+            if ((flags & FLAG_JAR_ENTRIES) != 0) {
+                jarFilesCrc32 = readJarEntries(in);
+            }
+            BlockSignatures blockSignatures = null;
+            if ((flags & FLAG_BLOCK_SIGNATURES) != 0) {
+                blockSignatures = readBlockSignatures(in);
+            }
+            result.add(new Checksum(filePath, (flags & FLAG_FOLDER) != 0, lastModified, size, digest, jarFilesCrc32, blockSignatures));
+        }
+        return new ChecksumManifest(algorithm, result);
+    }
+
+    public static void write(
+            @NotNull Collection<Checksum> checksums,
+            @NotNull DigestAlgorithm algorithm,
+            @NotNull OutputStream os
+    ) throws IOException {
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(os, 64 * 1024));
+        out.write(MAGIC);
+        out.writeByte(VERSION);
+        out.writeByte(algorithm.getId());
+        TreeSet<Checksum> sorted = checksums instanceof TreeSet ? (TreeSet<Checksum>) checksums : new TreeSet<>(checksums);
+        writeVarLong(out, sorted.size());
+        byte[] previousPath = new byte[0];
+        for (Checksum checksum : sorted) {
+            byte[] path = checksum.getFilePath().getBytes(StandardCharsets.UTF_8);
+            int prefixLength = commonPrefixLength(previousPath, path);
+            String digest = checksum.getDigest();
+            byte[] digestBytes = null;
+            int flags = checksum.isFolder() ? FLAG_FOLDER : 0;
+            TreeMap<String, Long> jarFilesCrc32 = checksum.getJarFilesCrc32();
+            if (jarFilesCrc32 != null) {
+                flags |= FLAG_JAR_ENTRIES;
+            }
+            BlockSignatures blockSignatures = checksum.getBlockSignatures();
+            if (blockSignatures != null) {
+                flags |= FLAG_BLOCK_SIGNATURES;
+            }
+            if (digest != null) {
+                flags |= FLAG_HAS_DIGEST;
+                digestBytes = toDigestBytes(digest);
+                if (digestBytes == null) {
+                    flags |= FLAG_TEXT_DIGEST;
+                    digestBytes = digest.getBytes(StandardCharsets.UTF_8);
+                }
+            }
+            out.writeByte(flags);
+            writeVarLong(out, prefixLength);
+            writeVarLong(out, path.length - prefixLength);
+            out.write(path, prefixLength, path.length - prefixLength);
+            writeVarLong(out, checksum.getLastModified());
+            writeVarLong(out, checksum.getSize());
+            if (digestBytes != null) {
+                writeVarLong(out, digestBytes.length);
+                out.write(digestBytes);
+            }
+            if (jarFilesCrc32 != null) {
+                writeJarEntries(out, jarFilesCrc32);
+            }
+            if (blockSignatures != null) {
+                writeBlockSignatures(out, blockSignatures);
+            }
+            previousPath = path;
+        }
+        out.flush();
+    }
+
+    private static void writeJarEntries(@NotNull DataOutputStream out, @NotNull TreeMap<String, Long> jarFilesCrc32) throws IOException {
+        writeVarLong(out, jarFilesCrc32.size());
+        byte[] previousName = new byte[0];
+        for (Map.Entry<String, Long> entry : jarFilesCrc32.entrySet()) {
+            byte[] name = entry.getKey().getBytes(StandardCharsets.UTF_8);
+            int prefixLength = commonPrefixLength(previousName, name);
+            writeVarLong(out, prefixLength);
+            writeVarLong(out, name.length - prefixLength);
+            out.write(name, prefixLength, name.length - prefixLength);
+            out.writeInt((int) entry.getValue().longValue());
+            previousName = name;
+        }
+    }
+
+    @NotNull
+    private static TreeMap<String, Long> readJarEntries(@NotNull DataInputStream in) throws IOException {
+        int count = (int) readVarLong(in);
+        TreeMap<String, Long> result = new TreeMap<>();
+        byte[] nameBytes = new byte[256];
+        int nameLength = 0;
+        for (int i = 0; i < count; ++i) {
+            int prefixLength = (int) readVarLong(in);
+            int suffixLength = (int) readVarLong(in);
+            if (prefixLength > nameLength) {
+                throw new IOException("Corrupted checksum manifest: invalid JAR entry prefix");
+            }
+            nameLength = prefixLength + suffixLength;
+            if (nameLength > nameBytes.length) {
+                byte[] newNameBytes = new byte[Math.max(nameLength, nameBytes.length * 2)];
+                System.arraycopy(nameBytes, 0, newNameBytes, 0, prefixLength);
+                nameBytes = newNameBytes;
+            }
+            in.readFully(nameBytes, prefixLength, suffixLength);
+            result.put(new String(nameBytes, 0, nameLength, StandardCharsets.UTF_8), in.readInt() & 0xFFFFFFFFL);
+        }
+        return result;
+    }
+
+    private static void writeBlockSignatures(@NotNull DataOutputStream out, @NotNull BlockSignatures blockSignatures) throws IOException {
+        writeVarLong(out, blockSignatures.getBlockSize());
+        writeVarLong(out, blockSignatures.getBlockCount());
+        for (int i = 0; i < blockSignatures.getBlockCount(); ++i) {
+            out.writeInt(blockSignatures.getWeak(i));
+            out.writeLong(blockSignatures.getStrong(i));
+        }
+    }
+
+    @NotNull
+    private static BlockSignatures readBlockSignatures(@NotNull DataInputStream in) throws IOException {
+        int blockSize = (int) readVarLong(in);
+        int count = (int) readVarLong(in);
+        int[] weak = new int[count];
+        long[] strong = new long[count];
+        for (int i = 0; i < count; ++i) {
+            weak[i] = in.readInt();
+            strong[i] = in.readLong();
+        }
+        return new BlockSignatures(blockSize, weak, strong);
+    }
+
+    private static boolean hasMagic(@NotNull byte[] bytes) {
+        if (bytes.length < MAGIC.length) {
+            return false;
+        }
+        for (int i = 0; i < MAGIC.length; ++i) {
+            if (bytes[i] != MAGIC[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @SuppressWarnings("unchecked")
+    @NotNull
+    private static TreeSet<Checksum> readSerialized(@NotNull byte[] bytes) throws IOException {
+        try (ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(bytes))) {
+            return (TreeSet<Checksum>) ois.readObject();
+        } catch (ClassNotFoundException | ClassCastException e) {
+            throw new IOException("Unable to read serialized checksums", e);
+        }
+    }
+
+    /**
+     * @return raw bytes of a lower-case hex digest, or {@code null} if the digest can't be restored from them as is
+     */
+    private static byte[] toDigestBytes(@NotNull String digest) {
+        if (digest.length() % 2 != 0) {
+            return null;
+        }
+        for (int i = 0; i < digest.length(); ++i) {
+            char c = digest.charAt(i);
+            if (!(c >= '0' && c <= '9') && !(c >= 'a' && c <= 'f')) {
+                return null;
+            }
+        }
+        return Utils.fromHex(digest);
+    }
+
+    private static int commonPrefixLength(@NotNull byte[] a, @NotNull byte[] b) {
+        int max = Math.min(a.length, b.length);
+        int i = 0;
+        while (i < max && a[i] == b[i]) {
+            ++i;
+        }
+        return i;
+    }
+
+    private static void writeVarLong(@NotNull DataOutputStream out, long value) throws IOException {
+        while ((value & ~0x7FL) != 0) {
+            out.writeByte((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.writeByte((int) value);
+    }
+
+    private static long readVarLong(@NotNull DataInputStream in) throws IOException {
+        long result = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = in.readUnsignedByte();
+            result |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return result;
+            }
+        }
+        throw new IOException("Corrupted checksum manifest: varint is too long");
+    }
+}
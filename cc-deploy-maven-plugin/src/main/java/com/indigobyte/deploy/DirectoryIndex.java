@@ -0,0 +1,353 @@
+package com.indigobyte.deploy;
+
+import org.apache.maven.plugin.logging.Log;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.*;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.*;
+
+/**
+ * Persistent index of a local folder tree: modification time of every folder together with its subfolders and the
+ * size and modification time of its files. A folder whose modification time didn't change since the previous scan
+ * has the same entries, so it isn't listed again. Every folder is still checked, because adding a file to a folder
+ * doesn't change modification times of its parents.
+ * <p>
+ * Rewriting a file in place doesn't change the modification time of its folder, so files of unchanged folders are
+ * still checked one by one unless folder times are trusted. Trusting them turns a scan of an unchanged tree into a
+ * check of its folders only, and accepts that files overwritten in place are noticed after their folder changes.
+ */
+public class DirectoryIndex {
+    private static final int MAGIC = 0x44495831; // "DIX1"
+    /**
+     * Folders modified this close to the scan may still change within the same timestamp, so they are listed again
+     * next time.
+     */
+    private static final long RACY_INTERVAL_MILLIS = 2000;
+
+    @NotNull
+    private final Log log;
+    private final boolean trustFolderTimes;
+    @NotNull
+    private String root = "";
+    @NotNull
+    private final Map<String, Folder> folders = new HashMap<>();
+    private boolean changed;
+
+    private DirectoryIndex(@NotNull Log log, boolean trustFolderTimes) {
+        this.log = log;
+        this.trustFolderTimes = trustFolderTimes;
+    }
+
+    @NotNull
+    public static DirectoryIndex load(@NotNull Log log, @NotNull Path indexFile, boolean trustFolderTimes) {
+        DirectoryIndex index = new DirectoryIndex(log, trustFolderTimes);
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(indexFile), 64 * 1024))) {
+            if (in.readInt() != MAGIC) {
+                log.warn("Directory index " + indexFile + " has unknown format, ignoring it");
+                return index;
+            }
+            index.root = in.readUTF();
+            int folderCount = in.readInt();
+            for (int i = 0; i < folderCount; ++i) {
+                String path = in.readUTF();
+                long lastModified = in.readLong();
+                String[] subfolders = new String[in.readInt()];
+                for (int j = 0; j < subfolders.length; ++j) {
+                    subfolders[j] = in.readUTF();
+                }
+                int fileCount = in.readInt();
+                String[] fileNames = new String[fileCount];
+                long[] fileSizes = new long[fileCount];
+                long[] fileTimes = new long[fileCount];
+                for (int j = 0; j < fileCount; ++j) {
+                    fileNames[j] = in.readUTF();
+                    fileSizes[j] = in.readLong();
+                    fileTimes[j] = in.readLong();
+                }
+                index.folders.put(path, new Folder(lastModified, subfolders, fileNames, fileSizes, fileTimes));
+            }
+            log.info("Directory index " + indexFile + " contains " + folderCount + " folders");
+        } catch (NoSuchFileException e) {
+            log.info("No directory index found at " + indexFile);
+        } catch (IOException e) {
+            log.warn("Unable to read directory index " + indexFile + ", ignoring it", e);
+            index.folders.clear();
+        }
+        return index;
+    }
+
+    /**
+     * Lists all files under {@code rootFolder}, following links like {@link Files#walkFileTree}, and updates the index.
+     */
+    @NotNull
+    public List<FileState> scan(@NotNull Path rootFolder) throws IOException {
+        String absoluteRoot = rootFolder.toAbsolutePath().normalize().toString();
+        if (!absoluteRoot.equals(root)) {
+            if (!folders.isEmpty()) {
+                log.info("Directory index was built for " + root + ", rebuilding it for " + absoluteRoot);
+                folders.clear();
+            }
+            root = absoluteRoot;
+            changed = true;
+        }
+        ScanContext context = new ScanContext(System.currentTimeMillis() - RACY_INTERVAL_MILLIS);
+        BasicFileAttributes rootAttributes = Files.readAttributes(rootFolder, BasicFileAttributes.class);
+        if (rootAttributes.isDirectory()) {
+            scanFolder(context, rootFolder, "", rootAttributes);
+        } else {
+            context.files.add(new FileState(rootFolder, "", rootAttributes.size(), rootAttributes.lastModifiedTime().toMillis()));
+        }
+        if (folders.keySet().retainAll(context.visitedFolders)) {
+            changed = true;
+        }
+        log.info("Directory index: " + context.visitedFolders.size() + " folders checked, " + context.listedFolders + " of them listed");
+        return context.files;
+    }
+
+    private void scanFolder(
+            @NotNull ScanContext context,
+            @NotNull Path folderPath,
+            @NotNull String key,
+            @NotNull BasicFileAttributes attributes
+    ) throws IOException {
+        Object fileKey = attributes.fileKey();
+        if (fileKey != null && !context.ancestorKeys.add(fileKey)) {
+            throw new FileSystemLoopException(folderPath.toString());
+        }
+        context.visitedFolders.add(key);
+        long lastModified = attributes.lastModifiedTime().toMillis();
+        Folder folder = folders.get(key);
+        List<FileState> knownFiles = folder != null && folder.lastModified == lastModified
+                ? checkKnownFiles(folderPath, key, folder)
+                : null;
+        if (knownFiles == null) {
+            ++context.listedFolders;
+            folder = listFolder(folderPath, lastModified < context.racyTime ? lastModified : -1);
+            folders.put(key, folder);
+            changed = true;
+            knownFiles = new ArrayList<>(folder.fileNames.length);
+            for (int i = 0; i < folder.fileNames.length; ++i) {
+                knownFiles.add(new FileState(folderPath.resolve(folder.fileNames[i]), relativePath(key, folder.fileNames[i]), folder.fileSizes[i], folder.fileTimes[i]));
+            }
+        }
+        context.files.addAll(knownFiles);
+        for (String subfolder : folder.subfolders) {
+            Path subfolderPath = folderPath.resolve(subfolder);
+            BasicFileAttributes subfolderAttributes = readAttributes(subfolderPath);
+            if (subfolderAttributes == null || !subfolderAttributes.isDirectory()) {
+                // Replaced after the folder was listed, it is listed again next time
+                folders.put(key, folder.withLastModified(-1));
+                changed = true;
+                if (subfolderAttributes != null) {
+                    context.files.add(new FileState(subfolderPath, relativePath(key, subfolder), subfolderAttributes.size(), subfolderAttributes.lastModifiedTime().toMillis()));
+                }
+                continue;
+            }
+            scanFolder(context, subfolderPath, relativePath(key, subfolder), subfolderAttributes);
+        }
+        if (fileKey != null) {
+            context.ancestorKeys.remove(fileKey);
+        }
+    }
+
+    /**
+     * @return files of an unchanged folder, or {@code null} if some of them changed their type and the folder must be
+     * listed again
+     */
+    @Nullable
+    private List<FileState> checkKnownFiles(@NotNull Path folderPath, @NotNull String key, @NotNull Folder folder) throws IOException {
+        List<FileState> result = new ArrayList<>(folder.fileNames.length);
+        for (int i = 0; i < folder.fileNames.length; ++i) {
+            Path file = folderPath.resolve(folder.fileNames[i]);
+            String relativePath = relativePath(key, folder.fileNames[i]);
+            if (trustFolderTimes) {
+                result.add(new FileState(file, relativePath, folder.fileSizes[i], folder.fileTimes[i]));
+                continue;
+            }
+            BasicFileAttributes attributes = readAttributes(file);
+            if (attributes == null || attributes.isDirectory()) {
+                return null;
+            }
+            long size = attributes.size();
+            long lastModified = attributes.lastModifiedTime().toMillis();
+            if (size != folder.fileSizes[i] || lastModified != folder.fileTimes[i]) {
+                folder.fileSizes[i] = size;
+                folder.fileTimes[i] = lastModified;
+                changed = true;
+            }
+            result.add(new FileState(file, relativePath, size, lastModified));
+        }
+        return result;
+    }
+
+    /**
+     * @return path relative to the scanned folder, the same as {@link Checksum#extractFilePath(Path, Path)} returns
+     */
+    @NotNull
+    private static String relativePath(@NotNull String folderKey, @NotNull String name) {
+        return Utils.linuxPath(folderKey.isEmpty() ? name : folderKey + "/" + name);
+    }
+
+    @NotNull
+    private static Folder listFolder(@NotNull Path folderPath, long lastModified) throws IOException {
+        List<String> subfolders = new ArrayList<>();
+        List<String> fileNames = new ArrayList<>();
+        List<BasicFileAttributes> fileAttributes = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(folderPath)) {
+            for (Path child : stream) {
+                BasicFileAttributes attributes = readAttributes(child);
+                if (attributes == null) {
+                    continue;
+                }
+                String name = child.getFileName().toString();
+                if (attributes.isDirectory()) {
+                    subfolders.add(name);
+                } else {
+                    fileNames.add(name);
+                    fileAttributes.add(attributes);
+                }
+            }
+        }
+        long[] fileSizes = new long[fileNames.size()];
+        long[] fileTimes = new long[fileNames.size()];
+        for (int i = 0; i < fileSizes.length; ++i) {
+            fileSizes[i] = fileAttributes.get(i).size();
+            fileTimes[i] = fileAttributes.get(i).lastModifiedTime().toMillis();
+        }
+        return new Folder(lastModified, subfolders.toArray(new String[0]), fileNames.toArray(new String[0]), fileSizes, fileTimes);
+    }
+
+    /**
+     * @return attributes of the link target, attributes of the link itself if it's broken, or {@code null} if the file
+     * doesn't exist anymore
+     */
+    @Nullable
+    private static BasicFileAttributes readAttributes(@NotNull Path file) throws IOException {
+        try {
+            return Files.readAttributes(file, BasicFileAttributes.class);
+        } catch (NoSuchFileException e) {
+            try {
+                return Files.readAttributes(file, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+            } catch (NoSuchFileException e1) {
+                return null;
+            }
+        }
+    }
+
+    /**
+     * Writes the index if anything changed since it was loaded.
+     */
+    public void save(@NotNull Path indexFile) throws IOException {
+        if (!changed) {
+            return;
+        }
+        Path parent = indexFile.toAbsolutePath().getParent();
+        if (parent != null) {
+            Files.createDirectories(parent);
+        }
+        Path tempFile = indexFile.resolveSibling(indexFile.getFileName() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tempFile), 64 * 1024))) {
+            out.writeInt(MAGIC);
+            out.writeUTF(root);
+            out.writeInt(folders.size());
+            for (Map.Entry<String, Folder> entry : folders.entrySet()) {
+                Folder folder = entry.getValue();
+                out.writeUTF(entry.getKey());
+                out.writeLong(folder.lastModified);
+                out.writeInt(folder.subfolders.length);
+                for (String subfolder : folder.subfolders) {
+                    out.writeUTF(subfolder);
+                }
+                out.writeInt(folder.fileNames.length);
+                for (int i = 0; i < folder.fileNames.length; ++i) {
+                    out.writeUTF(folder.fileNames[i]);
+                    out.writeLong(folder.fileSizes[i]);
+                    out.writeLong(folder.fileTimes[i]);
+                }
+            }
+        }
+        Files.move(tempFile, indexFile, StandardCopyOption.REPLACE_EXISTING);
+        changed = false;
+        log.debug("Directory index with " + folders.size() + " folders was written to " + indexFile);
+    }
+
+    /**
+     * Size and modification time of a file found by {@link #scan(Path)}.
+     */
+    public static class FileState {
+        @NotNull
+        private final Path path;
+        @NotNull
+        private final String relativePath;
+        private final long size;
+        private final long lastModified;
+
+        FileState(@NotNull Path path, @NotNull String relativePath, long size, long lastModified) {
+            this.path = path;
+            this.relativePath = relativePath;
+            this.size = size;
+            this.lastModified = lastModified;
+        }
+
+        @NotNull
+        public Path getPath() {
+            return path;
+        }
+
+        @NotNull
+        public String getRelativePath() {
+            return relativePath;
+        }
+
+        public long getSize() {
+            return size;
+        }
+
+        public long getLastModified() {
+            return lastModified;
+        }
+    }
+
+    private static class Folder {
+        private final long lastModified;
+        @NotNull
+        private final String[] subfolders;
+        @NotNull
+        private final String[] fileNames;
+        @NotNull
+        private final long[] fileSizes;
+        @NotNull
+        private final long[] fileTimes;
+
+        Folder(long lastModified, @NotNull String[] subfolders, @NotNull String[] fileNames, @NotNull long[] fileSizes, @NotNull long[] fileTimes) {
+            this.lastModified = lastModified;
+            this.subfolders = subfolders;
+            this.fileNames = fileNames;
+            this.fileSizes = fileSizes;
+            this.fileTimes = fileTimes;
+        }
+
+        @NotNull
+        Folder withLastModified(long lastModified) {
+            return new Folder(lastModified, subfolders, fileNames, fileSizes, fileTimes);
+        }
+    }
+
+    private static class ScanContext {
+        private final long racyTime;
+        @NotNull
+        private final List<FileState> files = new ArrayList<>();
+        @NotNull
+        private final Set<String> visitedFolders = new HashSet<>();
+        @NotNull
+        private final Set<Object> ancestorKeys = new HashSet<>();
+        private int listedFolders;
+
+        ScanContext(long racyTime) {
+            this.racyTime = racyTime;
+        }
+    }
+}
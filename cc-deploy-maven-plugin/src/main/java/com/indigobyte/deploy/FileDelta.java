@@ -0,0 +1,190 @@
+package com.indigobyte.deploy;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Binary delta of a file against the block signatures of its remote copy. The delta consists of instructions to copy
+ * runs of blocks of the remote copy and literal data which is stored in a separate file and uploaded. The remote side
+ * assembles the new file next to the old one with {@code dd}, so the old file stays in place until the result is
+ * verified.
+ */
+public class FileDelta {
+    private static final int COPY = 0;
+    private static final int LITERAL = 1;
+
+    private final int blockSize;
+    @NotNull
+    private final List<long[]> instructions = new ArrayList<>();
+    private long literalBytes;
+    private long copiedBytes;
+
+    private FileDelta(int blockSize) {
+        this.blockSize = blockSize;
+    }
+
+    /**
+     * Finds blocks of the remote copy in the local file and writes everything else into {@code literalFile}.
+     */
+    @NotNull
+    public static FileDelta compute(
+            @NotNull Path localFile,
+            @NotNull BlockSignatures remoteSignatures,
+            @NotNull Path literalFile
+    ) throws IOException {
+        int blockSize = remoteSignatures.getBlockSize();
+        FileDelta delta = new FileDelta(blockSize);
+        Map<Integer, List<Integer>> blocksByWeak = new HashMap<>();
+        BitSet weakFilter = new BitSet(1 << 16); // Avoids boxing and map lookups for most of the offsets
+        for (int i = 0; i < remoteSignatures.getBlockCount(); ++i) {
+            int weak = remoteSignatures.getWeak(i);
+            blocksByWeak.computeIfAbsent(weak, k -> new ArrayList<>(1)).add(i);
+            weakFilter.set(foldWeak(weak));
+        }
+        try (FileChannel channel = FileChannel.open(localFile, StandardOpenOption.READ);
+             OutputStream literals = new BufferedOutputStream(Files.newOutputStream(literalFile), 64 * 1024)) {
+            long fileSize = channel.size();
+            if (fileSize > Integer.MAX_VALUE) {
+                throw new IOException("File " + localFile + " is too big for delta transfer");
+            }
+            int size = (int) fileSize;
+            MappedByteBuffer data = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            byte[] block = new byte[blockSize];
+            int literalStart = 0;
+            int pos = 0;
+            int weak = 0;
+            boolean weakValid = false;
+            while (pos + blockSize <= size) {
+                if (!weakValid) {
+                    readBlock(data, pos, block);
+                    weak = BlockSignatures.weakChecksum(block, 0, blockSize);
+                    weakValid = true;
+                }
+                int matchedBlock = -1;
+                List<Integer> candidates = weakFilter.get(foldWeak(weak)) ? blocksByWeak.get(weak) : null;
+                if (candidates != null) {
+                    readBlock(data, pos, block);
+                    long strong = BlockSignatures.strongChecksum(block, 0, blockSize);
+                    for (int candidate : candidates) {
+                        if (remoteSignatures.getStrong(candidate) == strong) {
+                            matchedBlock = candidate;
+                            break;
+                        }
+                    }
+                }
+                if (matchedBlock >= 0) {
+                    delta.addLiteral(data, literalStart, pos - literalStart, literals);
+                    delta.addCopy(matchedBlock);
+                    pos += blockSize;
+                    literalStart = pos;
+                    weakValid = false;
+                } else {
+                    if (pos + blockSize < size) {
+                        weak = BlockSignatures.rollWeakChecksum(weak, blockSize, data.get(pos), data.get(pos + blockSize));
+                    }
+                    ++pos;
+                }
+            }
+            delta.addLiteral(data, literalStart, size - literalStart, literals);
+        }
+        return delta;
+    }
+
+    private static int foldWeak(int weak) {
+        return (weak ^ (weak >>> 16)) & 0xFFFF;
+    }
+
+    private static void readBlock(@NotNull MappedByteBuffer data, int pos, @NotNull byte[] block) {
+        ByteBuffer view = data.duplicate();
+        ((Buffer) view).position(pos);
+        view.get(block);
+    }
+
+    private void addCopy(int block) {
+        copiedBytes += blockSize;
+        if (!instructions.isEmpty()) {
+            long[] last = instructions.get(instructions.size() - 1);
+            if (last[0] == COPY && last[1] + last[2] == block) {
+                ++last[2];
+                return;
+            }
+        }
+        instructions.add(new long[]{COPY, block, 1});
+    }
+
+    private void addLiteral(@NotNull MappedByteBuffer data, int start, int length, @NotNull OutputStream literals) throws IOException {
+        if (length == 0) {
+            return;
+        }
+        byte[] buffer = new byte[Math.min(length, 64 * 1024)];
+        for (int written = 0; written < length; ) {
+            int chunk = Math.min(buffer.length, length - written);
+            ByteBuffer view = data.duplicate();
+            ((Buffer) view).position(start + written);
+            view.get(buffer, 0, chunk);
+            literals.write(buffer, 0, chunk);
+            written += chunk;
+        }
+        instructions.add(new long[]{LITERAL, literalBytes, length});
+        literalBytes += length;
+    }
+
+    public long getLiteralBytes() {
+        return literalBytes;
+    }
+
+    public long getCopiedBytes() {
+        return copiedBytes;
+    }
+
+    /**
+     * Creates a shell script which assembles the new file from the old one and the uploaded literal data.
+     */
+    @NotNull
+    public String createScript(
+            @NotNull String remoteOldFile,
+            @NotNull String remoteLiteralFile,
+            @NotNull String remoteNewFile
+    ) {
+        StringBuilder sb = new StringBuilder();
+        sb.append("set -e\n");
+        sb.append("OLD=").append(Utils.shellQuote(remoteOldFile)).append('\n');
+        sb.append("LIT=").append(Utils.shellQuote(remoteLiteralFile)).append('\n');
+        sb.append("{\n");
+        for (long[] instruction : instructions) {
+            if (instruction[0] == COPY) {
+                sb.append("dd if=\"$OLD\" bs=").append(blockSize)
+                        .append(" skip=").append(instruction[1])
+                        .append(" count=").append(instruction[2])
+                        .append(" 2>/dev/null\n");
+            } else {
+                sb.append("dd if=\"$LIT\" bs=1M iflag=skip_bytes,count_bytes")
+                        .append(" skip=").append(instruction[1])
+                        .append(" count=").append(instruction[2])
+                        .append(" 2>/dev/null\n");
+            }
+        }
+        sb.append("} > ").append(Utils.shellQuote(remoteNewFile)).append('\n');
+        return sb.toString();
+    }
+
+    @Override
+    public String toString() {
+        return "copied bytes = " + copiedBytes + ", literal bytes = " + literalBytes + ", instructions = " + instructions.size();
+    }
+}
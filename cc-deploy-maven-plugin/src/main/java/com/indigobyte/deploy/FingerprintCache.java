@@ -0,0 +1,215 @@
+package com.indigobyte.deploy;
+
+import org.apache.maven.plugin.logging.Log;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.*;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.CRC32;
+
+/**
+ * Local cache of file digests keyed by absolute path. Unlike the checksum manifest stored on the remote machine, it
+ * remembers size, modification time and file key (inode) of every hashed file, so unchanged files don't have to be
+ * hashed again even if the remote manifest was written by another machine.
+ * <p>
+ * In content-stable mode a file whose modification time changed but size didn't is compared by a sampled hash of its
+ * beginning, middle and end; the full digest is calculated only if the sample differs. It's meant for freshly
+ * unpacked WARs where every file gets a new modification time, and it accepts the risk of missing a change which
+ * keeps both the size and all sampled blocks intact.
+ */
+public class FingerprintCache {
+    private static final int MAGIC = 0x46504331; // "FPC1"
+    private static final int SAMPLE_BLOCK_SIZE = 4096;
+
+    @NotNull
+    private final Log log;
+    @NotNull
+    private final DigestAlgorithm algorithm;
+    private final boolean contentStable;
+    @NotNull
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+    @NotNull
+    private final Set<String> touchedKeys = ConcurrentHashMap.newKeySet();
+    private volatile boolean changed;
+
+    private FingerprintCache(@NotNull Log log, @NotNull DigestAlgorithm algorithm, boolean contentStable) {
+        this.log = log;
+        this.algorithm = algorithm;
+        this.contentStable = contentStable;
+    }
+
+    @NotNull
+    public static FingerprintCache load(
+            @NotNull Log log,
+            @NotNull Path cacheFile,
+            @NotNull DigestAlgorithm algorithm,
+            boolean contentStable
+    ) {
+        FingerprintCache cache = new FingerprintCache(log, algorithm, contentStable);
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(cacheFile), 64 * 1024))) {
+            if (in.readInt() != MAGIC) {
+                log.warn("Fingerprint cache " + cacheFile + " has unknown format, ignoring it");
+                return cache;
+            }
+            int algorithmId = in.readUnsignedByte();
+            if (algorithmId != algorithm.getId()) {
+                log.info("Fingerprint cache " + cacheFile + " was built with another digest algorithm, ignoring it");
+                return cache;
+            }
+            int count = in.readInt();
+            for (int i = 0; i < count; ++i) {
+                String key = in.readUTF();
+                long size = in.readLong();
+                long lastModified = in.readLong();
+                String fileKey = in.readUTF();
+                String digest = in.readUTF();
+                Long sampleHash = in.readBoolean() ? in.readLong() : null;
+                cache.entries.put(key, new Entry(size, lastModified, fileKey.isEmpty() ? null : fileKey, digest, sampleHash));
+            }
+            log.info("Fingerprint cache " + cacheFile + " contains " + count + " entries");
+        } catch (NoSuchFileException e) {
+            log.info("No fingerprint cache found at " + cacheFile);
+        } catch (IOException e) {
+            log.warn("Unable to read fingerprint cache " + cacheFile + ", ignoring it", e);
+            cache.entries.clear();
+        }
+        return cache;
+    }
+
+    /**
+     * @return cached digest of the file, or {@code null} if the file must be hashed
+     */
+    @Nullable
+    public String lookup(@NotNull Path file, @NotNull BasicFileAttributes attributes) throws IOException {
+        String key = key(file);
+        touchedKeys.add(key);
+        Entry entry = entries.get(key);
+        if (entry == null || entry.size != attributes.size()) {
+            return null;
+        }
+        String fileKey = fileKey(attributes);
+        long lastModified = attributes.lastModifiedTime().toMillis();
+        if (entry.lastModified == lastModified && Objects.equals(entry.fileKey, fileKey)) {
+            return entry.digest;
+        }
+        if (contentStable && entry.sampleHash != null && entry.sampleHash == sampleHash(file, attributes.size())) {
+            entries.put(key, new Entry(entry.size, lastModified, fileKey, entry.digest, entry.sampleHash));
+            changed = true;
+            return entry.digest;
+        }
+        return null;
+    }
+
+    public void update(@NotNull Path file, @NotNull BasicFileAttributes attributes, @NotNull String digest) throws IOException {
+        String key = key(file);
+        touchedKeys.add(key);
+        Long sampleHash = contentStable ? sampleHash(file, attributes.size()) : null;
+        entries.put(key, new Entry(attributes.size(), attributes.lastModifiedTime().toMillis(), fileKey(attributes), digest, sampleHash));
+        changed = true;
+    }
+
+    /**
+     * Writes the cache if anything changed. Entries under {@code root} which weren't looked up since the cache was
+     * loaded and whose files no longer exist are dropped.
+     */
+    public void save(@NotNull Path cacheFile, @NotNull Path root) throws IOException {
+        String rootPrefix = key(root) + File.separator;
+        for (Iterator<String> it = entries.keySet().iterator(); it.hasNext(); ) {
+            String key = it.next();
+            if (key.startsWith(rootPrefix) && !touchedKeys.contains(key) && !new File(key).exists()) {
+                it.remove();
+                changed = true;
+            }
+        }
+        if (!changed) {
+            return;
+        }
+        Path parent = cacheFile.toAbsolutePath().getParent();
+        if (parent != null) {
+            Files.createDirectories(parent);
+        }
+        Path tempFile = cacheFile.resolveSibling(cacheFile.getFileName() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tempFile), 64 * 1024))) {
+            out.writeInt(MAGIC);
+            out.writeByte(algorithm.getId());
+            out.writeInt(entries.size());
+            for (Map.Entry<String, Entry> mapEntry : entries.entrySet()) {
+                Entry entry = mapEntry.getValue();
+                out.writeUTF(mapEntry.getKey());
+                out.writeLong(entry.size);
+                out.writeLong(entry.lastModified);
+                out.writeUTF(entry.fileKey == null ? "" : entry.fileKey);
+                out.writeUTF(entry.digest);
+                out.writeBoolean(entry.sampleHash != null);
+                if (entry.sampleHash != null) {
+                    out.writeLong(entry.sampleHash);
+                }
+            }
+        }
+        Files.move(tempFile, cacheFile, StandardCopyOption.REPLACE_EXISTING);
+        changed = false;
+        log.debug("Fingerprint cache with " + entries.size() + " entries was written to " + cacheFile);
+    }
+
+    @NotNull
+    private static String key(@NotNull Path file) {
+        return file.toAbsolutePath().normalize().toString();
+    }
+
+    @Nullable
+    private static String fileKey(@NotNull BasicFileAttributes attributes) {
+        Object fileKey = attributes.fileKey();
+        return fileKey == null ? null : fileKey.toString();
+    }
+
+    /**
+     * Hashes the size and blocks at the beginning, in the middle and at the end of the file.
+     */
+    private static long sampleHash(@NotNull Path file, long size) throws IOException {
+        CRC32 crc = new CRC32();
+        ByteBuffer buffer = ByteBuffer.allocate(SAMPLE_BLOCK_SIZE);
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long[] offsets = {0, Math.max(0, size / 2 - SAMPLE_BLOCK_SIZE / 2), Math.max(0, size - SAMPLE_BLOCK_SIZE)};
+            for (long offset : offsets) {
+                ((Buffer) buffer).clear();
+                while (buffer.hasRemaining() && channel.read(buffer, offset + buffer.position()) > 0) {
+                }
+                crc.update(buffer.array(), 0, buffer.position());
+            }
+        }
+        return crc.getValue() ^ (size << 32);
+    }
+
+    private static class Entry {
+        private final long size;
+        private final long lastModified;
+        @Nullable
+        private final String fileKey;
+        @NotNull
+        private final String digest;
+        @Nullable
+        private final Long sampleHash;
+
+        Entry(long size, long lastModified, @Nullable String fileKey, @NotNull String digest, @Nullable Long sampleHash) {
+            this.size = size;
+            this.lastModified = lastModified;
+            this.fileKey = fileKey;
+            this.digest = digest;
+            this.sampleHash = sampleHash;
+        }
+    }
+}
@@ -13,5 +13,11 @@ public interface IAnalyzer {
     @NotNull
     TreeSet<Path> getFilesToRemove();
 
+    /**
+     * @return new files which are equal to the old ones
+     */
+    @NotNull
+    TreeSet<Path> getUnchangedFiles();
+
     void writeNewChecksums(@NotNull Path fileWithChecksums) throws IOException;
 }
@@ -0,0 +1,14 @@
+package com.indigobyte.deploy;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.nio.file.Path;
+
+/**
+ * Receives files which must be copied as soon as analyzer finds them. May be called from several threads at once.
+ */
+@FunctionalInterface
+public interface IChangeListener {
+    void fileChanged(@NotNull Path relativePath) throws IOException;
+}
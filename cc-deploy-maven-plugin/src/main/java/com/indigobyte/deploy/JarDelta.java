@@ -0,0 +1,162 @@
+package com.indigobyte.deploy;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Enumeration;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Difference between two versions of a JAR file based on CRCs of its entries. Only changed and added entries are
+ * shipped; the remote machine rebuilds the JAR from its current copy, the delta and the list of removed entries.
+ * Signed JARs are always shipped as a whole, because a rebuilt JAR has a different order of entries. So are JARs with
+ * entry names containing a line break or a backslash, which can't be checked with a digest list on the remote machine.
+ */
+public class JarDelta {
+    @NotNull
+    private final Path relativePath;
+    @NotNull
+    private final TreeSet<String> changedEntries;
+    @NotNull
+    private final TreeSet<String> removedEntries;
+
+    private JarDelta(@NotNull Path relativePath, @NotNull TreeSet<String> changedEntries, @NotNull TreeSet<String> removedEntries) {
+        this.relativePath = relativePath;
+        this.changedEntries = changedEntries;
+        this.removedEntries = removedEntries;
+    }
+
+    /**
+     * @return delta between two versions of the JAR file, or {@code null} if CRCs of entries of any version are
+     * unknown, if any version is signed or has unsafe entry names or if most of the entries changed, so uploading the
+     * whole JAR is cheaper
+     */
+    @Nullable
+    public static JarDelta compute(@NotNull Path relativePath, @Nullable Checksum oldChecksum, @Nullable Checksum newChecksum) {
+        if (oldChecksum == null || newChecksum == null) {
+            return null;
+        }
+        TreeMap<String, Long> oldCrc32 = oldChecksum.getJarFilesCrc32();
+        TreeMap<String, Long> newCrc32 = newChecksum.getJarFilesCrc32();
+        if (oldCrc32 == null || newCrc32 == null || isSigned(oldCrc32) || isSigned(newCrc32)
+                || hasUnsafeNames(oldCrc32) || hasUnsafeNames(newCrc32)) {
+            return null;
+        }
+        TreeSet<String> changedEntries = new TreeSet<>();
+        for (Map.Entry<String, Long> entry : newCrc32.entrySet()) {
+            if (!entry.getValue().equals(oldCrc32.get(entry.getKey()))) {
+                changedEntries.add(entry.getKey());
+            }
+        }
+        TreeSet<String> removedEntries = new TreeSet<>(oldCrc32.keySet());
+        removedEntries.removeAll(newCrc32.keySet());
+        if (changedEntries.size() * 2 > newCrc32.size()) {
+            return null;
+        }
+        return new JarDelta(relativePath, changedEntries, removedEntries);
+    }
+
+    private static boolean isSigned(@NotNull TreeMap<String, Long> crc32) {
+        for (String name : crc32.subMap("META-INF/", "META-INF0").keySet()) {
+            String fileName = name.substring("META-INF/".length()).toUpperCase(Locale.ROOT);
+            if (fileName.indexOf('/') < 0 && (fileName.startsWith("SIG-") || fileName.endsWith(".SF")
+                    || fileName.endsWith(".RSA") || fileName.endsWith(".DSA") || fileName.endsWith(".EC"))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean hasUnsafeNames(@NotNull TreeMap<String, Long> crc32) {
+        for (String name : crc32.keySet()) {
+            if (name.indexOf('\n') >= 0 || name.indexOf('\r') >= 0 || name.indexOf('\\') >= 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Calculates digests of all files of the local JAR, so the JAR rebuilt on the remote machine can be checked
+     * before it replaces the old one.
+     *
+     * @return digests keyed by entry names
+     */
+    @NotNull
+    public static TreeMap<String, String> getEntryDigests(@NotNull Path localJar, @NotNull DigestAlgorithm algorithm) throws IOException {
+        TreeMap<String, String> digests = new TreeMap<>();
+        try (JarFile jarFile = new JarFile(localJar.toFile())) {
+            Enumeration<JarEntry> entries = jarFile.entries();
+            while (entries.hasMoreElements()) {
+                JarEntry entry = entries.nextElement();
+                if (!entry.isDirectory()) {
+                    digests.put(entry.getName(), Utils.getDigest(jarFile.getInputStream(entry), algorithm));
+                }
+            }
+        }
+        return digests;
+    }
+
+    @NotNull
+    public Path getRelativePath() {
+        return relativePath;
+    }
+
+    @NotNull
+    public TreeSet<String> getChangedEntries() {
+        return changedEntries;
+    }
+
+    @NotNull
+    public TreeSet<String> getRemovedEntries() {
+        return removedEntries;
+    }
+
+    /**
+     * Writes changed and added entries of the local JAR into a ZIP archive.
+     */
+    public void writeArchive(@NotNull Path localJar, @NotNull Path archive) throws IOException {
+        byte[] buffer = new byte[64 * 1024];
+        try (JarFile jarFile = new JarFile(localJar.toFile());
+             ZipOutputStream zos = new ZipOutputStream(new BufferedOutputStream(Files.newOutputStream(archive), buffer.length))) {
+            zos.setLevel(Deflater.BEST_COMPRESSION);
+            for (String name : changedEntries) {
+                JarEntry jarEntry = jarFile.getJarEntry(name);
+                if (jarEntry == null) {
+                    throw new IOException("Entry " + name + " disappeared from " + localJar);
+                }
+                ZipEntry entry = new ZipEntry(name);
+                entry.setTime(jarEntry.getTime());
+                zos.putNextEntry(entry);
+                try (InputStream is = jarFile.getInputStream(jarEntry)) {
+                    int read;
+                    while ((read = is.read(buffer)) != -1) {
+                        zos.write(buffer, 0, read);
+                    }
+                }
+                zos.closeEntry();
+            }
+            if (changedEntries.isEmpty()) {
+                // ZIP archive must contain at least one entry
+                zos.putNextEntry(new ZipEntry("META-INF/"));
+                zos.closeEntry();
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        return relativePath + ": " + changedEntries.size() + " changed, " + removedEntries.size() + " removed entries";
+    }
+}
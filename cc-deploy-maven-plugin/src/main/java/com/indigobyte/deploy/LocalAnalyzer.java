@@ -5,11 +5,13 @@ import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
 import java.io.*;
+import java.nio.file.Files;
 import java.nio.file.Path;
-import java.util.Collections;
-import java.util.Map;
-import java.util.Set;
-import java.util.TreeSet;
+import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.Function;
 import java.util.stream.Collectors;
@@ -22,15 +24,59 @@ public class LocalAnalyzer implements IAnalyzer {
     @NotNull
     private final TreeSet<Checksum> newChecksums;
     @NotNull
-    private final Path sourceFolder;
+    private final DigestAlgorithm algorithm;
+    @Nullable
+    private TreeSet<Path> filesToCopy;
+    @Nullable
+    private TreeSet<Path> filesToRemove;
+    @Nullable
+    private TreeSet<Path> unchangedFiles;
 
     public LocalAnalyzer(@NotNull Log log, @NotNull Path sourceFolder, @Nullable byte[] oldChecksumBytes) throws IOException {
+        this(log, sourceFolder, oldChecksumBytes, 1);
+    }
+
+    public LocalAnalyzer(@NotNull Log log, @NotNull Path sourceFolder, @Nullable byte[] oldChecksumBytes, int threadCount) throws IOException {
+        this(log, sourceFolder, oldChecksumBytes, threadCount, DigestAlgorithm.MD5, null, false, null);
+    }
+
+    public LocalAnalyzer(
+            @NotNull Log log,
+            @NotNull Path sourceFolder,
+            @Nullable byte[] oldChecksumBytes,
+            int threadCount,
+            @NotNull DigestAlgorithm algorithm,
+            @Nullable FingerprintCache fingerprintCache,
+            boolean keepJarEntries,
+            @Nullable IChangeListener changeListener
+    ) throws IOException {
+        this(log, sourceFolder, oldChecksumBytes, threadCount, algorithm, fingerprintCache, null, keepJarEntries, changeListener);
+    }
+
+    /**
+     * @param directoryIndex index used to find existing files instead of walking the whole folder tree
+     */
+    public LocalAnalyzer(
+            @NotNull Log log,
+            @NotNull Path sourceFolder,
+            @Nullable byte[] oldChecksumBytes,
+            int threadCount,
+            @NotNull DigestAlgorithm algorithm,
+            @Nullable FingerprintCache fingerprintCache,
+            @Nullable DirectoryIndex directoryIndex,
+            boolean keepJarEntries,
+            @Nullable IChangeListener changeListener
+    ) throws IOException {
+        this.algorithm = algorithm;
+        DigestAlgorithm oldAlgorithm = algorithm;
         if (oldChecksumBytes != null) {
             log.info("Reading old checksums");
             TreeSet<Checksum> oldChecksums;
-            try (ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(oldChecksumBytes))) {
-                oldChecksums = (TreeSet<Checksum>) ois.readObject();
-            } catch (IOException | ClassNotFoundException e) {
+            try {
+                ChecksumManifest manifest = ChecksumManifest.read(oldChecksumBytes);
+                oldChecksums = manifest.getChecksums();
+                oldAlgorithm = manifest.getAlgorithm();
+            } catch (IOException | RuntimeException e) {
                 log.warn("Unable to read old checksums, skipping", e);
                 oldChecksums = new TreeSet<>();
             }
@@ -41,57 +87,254 @@ public class LocalAnalyzer implements IAnalyzer {
             oldChecksums = new TreeSet<>();
         }
 
-        Map<String, Checksum> oldChecksumMap = oldChecksums.stream()
-                .collect(Collectors.toMap(
-                        Checksum::getFilePath,
-                        Function.identity()
-                ));
+        Map<String, Checksum> oldChecksumMap;
+        if (oldAlgorithm == algorithm) {
+            oldChecksumMap = oldChecksums.stream()
+                    .collect(Collectors.toMap(
+                            Checksum::getFilePath,
+                            Function.identity()
+                    ));
+        } else {
+            log.warn("Old checksums were calculated with " + oldAlgorithm + " instead of " + algorithm + ", all files will be rehashed");
+            oldChecksumMap = Collections.emptyMap();
+        }
 
         log.info("Searching for existing files at " + sourceFolder);
-        existingFiles = Collections.unmodifiableSet(MyFileIterator.getAllFilesAndFoldersRecursively(sourceFolder).stream()
-                .filter(path -> !path.getFileName().toString().equals(".gitignore"))
-                .collect(Collectors.toSet())
-        );
+        Map<Path, DirectoryIndex.FileState> fileStates;
+        if (directoryIndex != null) {
+            fileStates = new HashMap<>();
+            for (DirectoryIndex.FileState fileState : directoryIndex.scan(sourceFolder)) {
+                fileStates.put(fileState.getPath(), fileState);
+            }
+            existingFiles = Collections.unmodifiableSet(fileStates.keySet().stream()
+                    .filter(path -> !path.getFileName().toString().equals(".gitignore"))
+                    .collect(Collectors.toSet())
+            );
+        } else {
+            fileStates = Collections.emptyMap();
+            existingFiles = Collections.unmodifiableSet(MyFileIterator.getAllFilesAndFoldersRecursively(sourceFolder).stream()
+                    .filter(path -> !path.getFileName().toString().equals(".gitignore"))
+                    .collect(Collectors.toSet())
+            );
+        }
         log.info("Calculating checksums for " + existingFiles.size() + " files");
-        TreeSet<Checksum> tempNewChecksums = new TreeSet<>();
         AtomicInteger checksumsCalculated = new AtomicInteger();
-        for (Path path : existingFiles) {
-            tempNewChecksums.add(new Checksum(path, sourceFolder, oldChecksumMap.get(Checksum.extractFilePath(path, sourceFolder)), checksumsCalculated));
+        if (threadCount > 1 && existingFiles.size() > 1) {
+            newChecksums = calculateChecksumsInParallel(log, sourceFolder, oldChecksumMap, fileStates, checksumsCalculated, threadCount, algorithm, fingerprintCache, keepJarEntries, changeListener);
+        } else {
+            TreeSet<Checksum> tempNewChecksums = new TreeSet<>();
+            for (Path path : existingFiles) {
+                DirectoryIndex.FileState fileState = fileStates.get(path);
+                String filePath = fileState != null ? fileState.getRelativePath() : relativePath(sourceFolder, path);
+                tempNewChecksums.add(calculateChecksum(path, filePath, oldChecksumMap.get(filePath), fileState, algorithm, fingerprintCache, keepJarEntries, checksumsCalculated, changeListener));
+            }
+            newChecksums = tempNewChecksums;
         }
-        newChecksums = tempNewChecksums;
-        this.sourceFolder = sourceFolder;
         log.info("Checksum calculation complete. Actual checksums calculated: " + checksumsCalculated.get() + ", old checksums used: " + (existingFiles.size() - checksumsCalculated.get()));
     }
 
+    /**
+     * @return the same as {@link Checksum#extractFilePath(Path, Path)}, but files found under the folder are
+     * relativized without making both paths absolute
+     */
+    @NotNull
+    private static String relativePath(@NotNull Path sourceFolder, @NotNull Path path) {
+        return path.startsWith(sourceFolder) && !sourceFolder.toString().isEmpty()
+                ? Utils.linuxPath(sourceFolder.relativize(path).toString())
+                : Checksum.extractFilePath(path, sourceFolder);
+    }
+
+    @NotNull
+    private static Checksum calculateChecksum(
+            @NotNull Path path,
+            @NotNull String filePath,
+            @Nullable Checksum oldChecksum,
+            @Nullable DirectoryIndex.FileState fileState,
+            @NotNull DigestAlgorithm algorithm,
+            @Nullable FingerprintCache fingerprintCache,
+            boolean keepJarEntries,
+            @NotNull AtomicInteger checksumsCalculated,
+            @Nullable IChangeListener changeListener
+    ) throws IOException {
+        // The index already knows size and modification time, so an unchanged file needn't be looked at again
+        if (fileState != null && oldChecksum != null && !oldChecksum.isFolder()
+                && oldChecksum.getLastModified() == fileState.getLastModified() && oldChecksum.getSize() == fileState.getSize()
+                && !(keepJarEntries && oldChecksum.getJarFilesCrc32() == null && Checksum.isJar(path))) {
+            return oldChecksum;
+        }
+        // The old checksum has the same path, sharing it keeps one string per file in memory
+        Checksum checksum = new Checksum(path, oldChecksum != null ? oldChecksum.getFilePath() : filePath, oldChecksum, algorithm, fingerprintCache, keepJarEntries, checksumsCalculated);
+        if (changeListener != null && !checksum.equals(oldChecksum)) {
+            changeListener.fileChanged(checksum.getPath());
+        }
+        return checksum;
+    }
+
+    @NotNull
+    private TreeSet<Checksum> calculateChecksumsInParallel(
+            @NotNull Log log,
+            @NotNull Path sourceFolder,
+            @NotNull Map<String, Checksum> oldChecksumMap,
+            @NotNull Map<Path, DirectoryIndex.FileState> fileStates,
+            @NotNull AtomicInteger checksumsCalculated,
+            int threadCount,
+            @NotNull DigestAlgorithm algorithm,
+            @Nullable FingerprintCache fingerprintCache,
+            boolean keepJarEntries,
+            @Nullable IChangeListener changeListener
+    ) throws IOException {
+        int poolSize = Math.min(threadCount, existingFiles.size());
+        log.info("Using " + poolSize + " threads for checksum calculation");
+        ExecutorService executor = Executors.newFixedThreadPool(poolSize);
+        try {
+            List<Future<Checksum>> futures = new ArrayList<>(existingFiles.size());
+            for (Path path : existingFiles) {
+                DirectoryIndex.FileState fileState = fileStates.get(path);
+                String filePath = fileState != null ? fileState.getRelativePath() : relativePath(sourceFolder, path);
+                Checksum oldChecksum = oldChecksumMap.get(filePath);
+                futures.add(executor.submit(() -> calculateChecksum(path, filePath, oldChecksum, fileState, algorithm, fingerprintCache, keepJarEntries, checksumsCalculated, changeListener)));
+            }
+            TreeSet<Checksum> result = new TreeSet<>();
+            for (Future<Checksum> future : futures) {
+                try {
+                    result.add(future.get());
+                } catch (ExecutionException e) {
+                    Throwable cause = e.getCause();
+                    if (cause instanceof IOException) {
+                        throw (IOException) cause;
+                    }
+                    throw new IOException("Unable to calculate checksum", cause);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Checksum calculation was interrupted");
+                }
+            }
+            return result;
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
     @Override
     @NotNull
     public TreeSet<Path> getFilesToCopy() {
-        TreeSet<Checksum> filesToCopy = new TreeSet<>(newChecksums);
-        filesToCopy.removeAll(oldChecksums);
-        TreeSet<Path> result = new TreeSet<>();
-        for (Checksum checksum : filesToCopy) {
-            result.add(checksum.getPath());
-        }
-        return result;
+        compareChecksums();
+        return new TreeSet<>(filesToCopy);
     }
 
     @Override
     @NotNull
     public TreeSet<Path> getFilesToRemove() {
-        TreeSet<Path> filesToRemove = new TreeSet<>();
-        for (Checksum checksum : oldChecksums) {
-            filesToRemove.add(checksum.getPath());
+        compareChecksums();
+        return new TreeSet<>(filesToRemove);
+    }
+
+    @Override
+    @NotNull
+    public TreeSet<Path> getUnchangedFiles() {
+        compareChecksums();
+        return new TreeSet<>(unchangedFiles);
+    }
+
+    /**
+     * Finds files to copy, to remove and unchanged files in a single pass over old and new checksums, both of them are
+     * sorted by path. A new file is copied unless an old checksum with the same path is equal to it; an old file is
+     * removed unless there's a new file with the same path.
+     */
+    private synchronized void compareChecksums() {
+        if (filesToCopy != null) {
+            return;
+        }
+        TreeSet<Path> toCopy = new TreeSet<>();
+        TreeSet<Path> toRemove = new TreeSet<>();
+        TreeSet<Path> unchangedPaths = new TreeSet<>();
+        Iterator<Checksum> oldIterator = oldChecksums.iterator();
+        Iterator<Checksum> newIterator = newChecksums.iterator();
+        Checksum oldChecksum = oldIterator.hasNext() ? oldIterator.next() : null;
+        Checksum newChecksum = newIterator.hasNext() ? newIterator.next() : null;
+        while (oldChecksum != null || newChecksum != null) {
+            int order = oldChecksum == null ? 1 : newChecksum == null ? -1 : oldChecksum.getFilePath().compareTo(newChecksum.getFilePath());
+            if (order < 0) {
+                toRemove.add(oldChecksum.getPath());
+                oldChecksum = oldIterator.hasNext() ? oldIterator.next() : null;
+            } else if (order > 0) {
+                toCopy.add(newChecksum.getPath());
+                newChecksum = newIterator.hasNext() ? newIterator.next() : null;
+            } else {
+                // Old checksums may describe the same path both as a file and as a folder
+                boolean unchanged = false;
+                String filePath = newChecksum.getFilePath();
+                while (oldChecksum != null && oldChecksum.getFilePath().equals(filePath)) {
+                    unchanged |= oldChecksum.equals(newChecksum);
+                    oldChecksum = oldIterator.hasNext() ? oldIterator.next() : null;
+                }
+                (unchanged ? unchangedPaths : toCopy).add(newChecksum.getPath());
+                newChecksum = newIterator.hasNext() ? newIterator.next() : null;
+            }
+        }
+        filesToCopy = toCopy;
+        filesToRemove = toRemove;
+        unchangedFiles = unchangedPaths;
+    }
+
+    @NotNull
+    public Set<Checksum> getNewChecksums() {
+        return Collections.unmodifiableSet(newChecksums);
+    }
+
+    @Nullable
+    public Checksum getOldChecksum(@NotNull Path relativePath) {
+        return findChecksum(oldChecksums, relativePath);
+    }
+
+    @Nullable
+    public Checksum getNewChecksum(@NotNull Path relativePath) {
+        return findChecksum(newChecksums, relativePath);
+    }
+
+    @Nullable
+    private static Checksum findChecksum(@NotNull TreeSet<Checksum> checksums, @NotNull Path relativePath) {
+        String filePath = Utils.linuxPath(relativePath);
+        Checksum candidate = checksums.ceiling(new Checksum(filePath, false, 0, 0, null, null, null));
+        if (candidate != null && candidate.getFilePath().equals(filePath)) {
+            return candidate;
         }
-        for (Path existingPath : existingFiles) {
-            filesToRemove.remove(sourceFolder.toAbsolutePath().relativize(existingPath.toAbsolutePath()));
+        return null;
+    }
+
+    /**
+     * Stores block signatures of a new file, so that the next deploy can transfer only its changed blocks.
+     */
+    public void setBlockSignatures(@NotNull Path relativePath, @NotNull BlockSignatures blockSignatures) {
+        Checksum checksum = getNewChecksum(relativePath);
+        if (checksum == null) {
+            throw new IllegalArgumentException("Unknown file " + relativePath);
         }
-        return filesToRemove;
+        newChecksums.remove(checksum);
+        newChecksums.add(checksum.withBlockSignatures(blockSignatures));
     }
 
     public void writeNewChecksums(@NotNull Path fileWithChecksums) throws IOException {
         fileWithChecksums.getParent().toFile().mkdirs();
-        try (ObjectOutputStream ois = new ObjectOutputStream(new FileOutputStream(fileWithChecksums.toFile(), false))) {
-            ois.writeObject(newChecksums);
+        try (OutputStream os = new FileOutputStream(fileWithChecksums.toFile(), false)) {
+            ChecksumManifest.write(newChecksums, algorithm, os);
+        }
+    }
+
+    /**
+     * Writes new checksums unless the file already contains exactly the same bytes.
+     *
+     * @return whether the file was written
+     */
+    public boolean writeNewChecksums(@NotNull Path fileWithChecksums, @Nullable byte[] oldChecksumBytes) throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream(oldChecksumBytes != null ? oldChecksumBytes.length : 1024);
+        ChecksumManifest.write(newChecksums, algorithm, baos);
+        byte[] newChecksumBytes = baos.toByteArray();
+        if (Arrays.equals(newChecksumBytes, oldChecksumBytes)) {
+            return false;
         }
+        fileWithChecksums.getParent().toFile().mkdirs();
+        Files.write(fileWithChecksums, newChecksumBytes);
+        return true;
     }
 }
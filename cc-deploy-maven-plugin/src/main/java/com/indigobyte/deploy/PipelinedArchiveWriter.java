@@ -0,0 +1,214 @@
+package com.indigobyte.deploy;
+
+import org.apache.maven.plugin.logging.Log;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Writes changed files into a ZIP archive on a separate thread as soon as the analyzer reports them, so hashing,
+ * compression and network transfer overlap. The target stream is opened only when the first file arrives.
+ */
+public class PipelinedArchiveWriter implements IChangeListener, AutoCloseable {
+    private static final Path END_OF_FILES = Paths.get("");
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    @NotNull
+    private final Log log;
+    @NotNull
+    private final Path basePath;
+    @NotNull
+    private final OutputStreamFactory outputStreamFactory;
+    @NotNull
+    private final DigestAlgorithm algorithm;
+    @Nullable
+    private final CompressionPolicy compressionPolicy;
+    @NotNull
+    private final BlockingQueue<Path> queue = new LinkedBlockingQueue<>();
+    @NotNull
+    private final AtomicInteger filesArchived = new AtomicInteger();
+    @NotNull
+    private final Thread thread;
+    @Nullable
+    private volatile Throwable failure;
+    @Nullable
+    private volatile String archiveDigest;
+
+    public PipelinedArchiveWriter(
+            @NotNull Log log,
+            @NotNull Path basePath,
+            @NotNull OutputStreamFactory outputStreamFactory,
+            @NotNull DigestAlgorithm algorithm
+    ) {
+        this(log, basePath, outputStreamFactory, algorithm, null);
+    }
+
+    /**
+     * @param compressionPolicy chooses compression of every file; if {@code null}, all files are deflated with the
+     *                          best compression
+     */
+    public PipelinedArchiveWriter(
+            @NotNull Log log,
+            @NotNull Path basePath,
+            @NotNull OutputStreamFactory outputStreamFactory,
+            @NotNull DigestAlgorithm algorithm,
+            @Nullable CompressionPolicy compressionPolicy
+    ) {
+        this.log = log;
+        this.basePath = basePath;
+        this.outputStreamFactory = outputStreamFactory;
+        this.algorithm = algorithm;
+        this.compressionPolicy = compressionPolicy;
+        this.thread = new Thread(this::run, "pipelined-archive-writer");
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+
+    @Override
+    public void fileChanged(@NotNull Path relativePath) throws IOException {
+        checkFailure();
+        queue.add(relativePath);
+    }
+
+    /**
+     * Waits until all reported files are written and the target stream is closed.
+     *
+     * @return digest of the written archive, or {@code null} if no files were reported and nothing was written
+     */
+    @Nullable
+    public String finish() throws IOException {
+        queue.add(END_OF_FILES);
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Waiting for archive writer was interrupted");
+        }
+        checkFailure();
+        log.info("Archive writer has finished. Files archived: " + filesArchived.get());
+        return archiveDigest;
+    }
+
+    private void checkFailure() throws IOException {
+        Throwable e = failure;
+        if (e != null) {
+            if (e instanceof IOException) {
+                throw new IOException("Unable to write archive: " + e.getMessage(), e);
+            }
+            throw new IOException("Unable to write archive", e);
+        }
+    }
+
+    private void run() {
+        ZipOutputStream zos = null;
+        try {
+            DigestAlgorithm.Sink sink = algorithm.newSink();
+            byte[] buffer = new byte[BUFFER_SIZE];
+            while (true) {
+                Path relativePath = queue.take();
+                if (relativePath == END_OF_FILES) {
+                    break;
+                }
+                if (zos == null) {
+                    zos = new ZipOutputStream(new BufferedOutputStream(new DigestingOutputStream(outputStreamFactory.open(), sink), BUFFER_SIZE));
+                    zos.setLevel(Deflater.BEST_COMPRESSION);
+                }
+                writeEntry(zos, relativePath, buffer);
+                filesArchived.incrementAndGet();
+            }
+            if (zos != null) {
+                zos.close();
+                zos = null;
+                archiveDigest = Utils.getHex(sink.finish());
+            }
+        } catch (Throwable e) {
+            failure = e;
+            queue.clear();
+        } finally {
+            if (zos != null) {
+                try {
+                    zos.close();
+                } catch (Throwable e) {
+                    log.debug("Unable to close archive stream after failure", e);
+                }
+            }
+        }
+    }
+
+    private void writeEntry(@NotNull ZipOutputStream zos, @NotNull Path relativePath, @NotNull byte[] buffer) throws IOException {
+        Path file = basePath.resolve(relativePath);
+        String entryName = Utils.linuxPath(relativePath);
+        File file1 = file.toFile();
+        if (file1.isDirectory()) {
+            ZipEntry entry = new ZipEntry(entryName + "/");
+            entry.setTime(file1.lastModified());
+            zos.putNextEntry(entry);
+            zos.closeEntry();
+            return;
+        }
+        ZipEntry entry = new ZipEntry(entryName);
+        entry.setTime(file1.lastModified());
+        if (compressionPolicy != null) {
+            // Level 0 writes stored deflate blocks, so the CRC doesn't have to be known before the entry is written
+            zos.setLevel(compressionPolicy.getLevel(file));
+        }
+        zos.putNextEntry(entry);
+        try (InputStream is = Files.newInputStream(file)) {
+            int read;
+            while ((read = is.read(buffer)) != -1) {
+                zos.write(buffer, 0, read);
+            }
+        }
+        zos.closeEntry();
+    }
+
+    @Override
+    public void close() {
+        if (thread.isAlive()) {
+            thread.interrupt();
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private static class DigestingOutputStream extends FilterOutputStream {
+        @NotNull
+        private final DigestAlgorithm.Sink sink;
+
+        DigestingOutputStream(@NotNull OutputStream out, @NotNull DigestAlgorithm.Sink sink) {
+            super(out);
+            this.sink = sink;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            sink.update(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(@NotNull byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            sink.update(b, off, len);
+        }
+    }
+
+    @FunctionalInterface
+    public interface OutputStreamFactory {
+        @NotNull
+        OutputStream open() throws IOException;
+    }
+}
@@ -0,0 +1,151 @@
+package com.indigobyte.deploy;
+
+import com.indigobyte.ssh.AbstractSshClient;
+import org.apache.maven.plugin.logging.Log;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+
+/**
+ * Checks the checksum manifest downloaded from the remote machine against the files which are actually there, so that
+ * changes made by hand or by a half-failed deploy are repaired by uploading only the files which really differ.
+ * <p>
+ * One {@code find} lists type, size and modification time of all remote files. Entries of missing files are dropped.
+ * Files whose size differs from the manifest or which were modified after the manifest are hashed on the remote
+ * machine in parallel, as well as files which exist locally but aren't in the manifest; their entries are replaced
+ * with the actual digests. JAR files are described by digests of their entries, which can't be calculated remotely,
+ * so suspect JAR entries are dropped and the files are uploaded again. Sizes of JAR files described by CRCs of their
+ * entries aren't compared, because a JAR rebuilt from a delta on the remote machine has a different size than the
+ * local one; only their modification time is checked.
+ */
+public class RemoteManifestVerifier {
+    private RemoteManifestVerifier() {
+    }
+
+    /**
+     * @param manifestBytes     manifest downloaded from the remote machine, {@code null} if there was none
+     * @param defaultAlgorithm  algorithm of the new manifest if there was none
+     * @return manifest describing the remote files
+     */
+    @NotNull
+    public static byte[] verify(
+            @NotNull Log log,
+            @NotNull AbstractSshClient sshClient,
+            @Nullable byte[] manifestBytes,
+            @NotNull String remoteRoot,
+            @NotNull String remoteManifest,
+            @NotNull Path localRoot,
+            @NotNull DigestAlgorithm defaultAlgorithm
+    ) throws IOException {
+        DigestAlgorithm algorithm = defaultAlgorithm;
+        Map<String, Checksum> entries = new TreeMap<>();
+        if (manifestBytes != null) {
+            try {
+                ChecksumManifest manifest = ChecksumManifest.read(manifestBytes);
+                algorithm = manifest.getAlgorithm();
+                for (Checksum checksum : manifest.getChecksums()) {
+                    entries.put(checksum.getFilePath(), checksum);
+                }
+            } catch (IOException | RuntimeException e) {
+                log.warn("Unable to read remote checksums, they will be rebuilt from remote files", e);
+            }
+        }
+        log.info("Verifying remote checksums against files in " + remoteRoot);
+        String output = sshClient.executeCommand(
+                "find " + Utils.shellQuote(remoteManifest) + " -maxdepth 0 -printf 'm %T@\\0' 2>/dev/null; " +
+                        "cd " + Utils.shellQuote(remoteRoot) + " 2>/dev/null && find . -mindepth 1 -printf '%y %s %T@ %P\\0'; true"
+        );
+        long manifestTime = Long.MAX_VALUE;
+        Map<String, RemoteFile> remoteFiles = new HashMap<>();
+        for (String record : output.split("\0")) {
+            if (record.startsWith("m ")) {
+                manifestTime = toMillis(record.substring(2).trim());
+                continue;
+            }
+            String[] fields = record.split(" ", 4);
+            if (fields.length == 4) {
+                remoteFiles.put(fields[3], new RemoteFile(fields[0].equals("d"), fields[0].equals("f"), Long.parseLong(fields[1]), toMillis(fields[2])));
+            }
+        }
+        boolean remoteHashing = algorithm.getRemoteCommand() != null;
+        List<String> suspectFiles = new ArrayList<>();
+        int droppedEntries = 0;
+        for (Iterator<Checksum> it = entries.values().iterator(); it.hasNext(); ) {
+            Checksum checksum = it.next();
+            RemoteFile remoteFile = remoteFiles.get(checksum.getFilePath());
+            if (remoteFile == null || remoteFile.folder != checksum.isFolder() || !remoteFile.folder && !remoteFile.regularFile) {
+                it.remove();
+                ++droppedEntries;
+            } else if (!checksum.isFolder() && (!sizeMatches(checksum, remoteFile) || remoteFile.lastModified > manifestTime)) {
+                if (remoteHashing && !Checksum.isJar(checksum.getPath())) {
+                    suspectFiles.add(checksum.getFilePath());
+                } else {
+                    it.remove();
+                    ++droppedEntries;
+                }
+            }
+        }
+        int untrackedFiles = 0;
+        for (Map.Entry<String, RemoteFile> entry : remoteFiles.entrySet()) {
+            String path = entry.getKey();
+            RemoteFile remoteFile = entry.getValue();
+            if (remoteFile.folder || entries.containsKey(path)) {
+                continue;
+            }
+            // Files which don't exist locally are left alone, they may be managed by someone else
+            Path localFile = localRoot.resolve(path);
+            if (remoteFile.regularFile && remoteHashing && !Checksum.isJar(localFile) && Files.isRegularFile(localFile)) {
+                suspectFiles.add(path);
+            } else {
+                ++untrackedFiles;
+            }
+        }
+        Map<String, String> remoteDigests = sshClient.getRemoteDigests(remoteRoot, suspectFiles, algorithm);
+        int changedFiles = 0;
+        for (String path : suspectFiles) {
+            Checksum oldChecksum = entries.remove(path);
+            String digest = remoteDigests.get(path);
+            if (digest == null) {
+                continue;
+            }
+            if (oldChecksum == null || !digest.equals(oldChecksum.getDigest())) {
+                ++changedFiles;
+            }
+            RemoteFile remoteFile = remoteFiles.get(path);
+            entries.put(path, new Checksum(path, false, remoteFile.lastModified, remoteFile.size, digest, null, null));
+        }
+        log.info("Remote checksums were verified: " + remoteFiles.size() + " remote files, " + suspectFiles.size() + " of them hashed, " +
+                changedFiles + " differ from checksums, " + droppedEntries + " checksums dropped, " + untrackedFiles + " untracked files left alone");
+        ByteArrayOutputStream result = new ByteArrayOutputStream();
+        ChecksumManifest.write(entries.values(), algorithm, result);
+        return result.toByteArray();
+    }
+
+    private static boolean sizeMatches(@NotNull Checksum checksum, @NotNull RemoteFile remoteFile) {
+        return checksum.getJarFilesCrc32() != null || remoteFile.size == checksum.getSize();
+    }
+
+    private static long toMillis(@NotNull String seconds) {
+        return new BigDecimal(seconds).movePointRight(3).longValue();
+    }
+
+    private static class RemoteFile {
+        private final boolean folder;
+        private final boolean regularFile;
+        private final long size;
+        private final long lastModified;
+
+        RemoteFile(boolean folder, boolean regularFile, long size, long lastModified) {
+            this.folder = folder;
+            this.regularFile = regularFile;
+            this.size = size;
+            this.lastModified = lastModified;
+        }
+    }
+}
@@ -0,0 +1,21 @@
+package com.indigobyte.maven.plugins;
+
+/**
+ * How changed files are put into the destination folder of {@code sync-folder}.
+ */
+public enum CopyMode {
+    /**
+     * Content is copied by the kernel with {@code FileChannel.transferTo}, modification time and permissions are kept.
+     */
+    COPY,
+    /**
+     * Destination files are hard links to the source ones, so nothing is copied. Changes of a file in either folder
+     * are visible in both. Falls back to {@link #COPY} if the folders are on different file systems.
+     */
+    LINK,
+    /**
+     * Files are copied by {@code cp --reflink=auto}, which shares blocks of both files on copy-on-write file systems
+     * (Btrfs, XFS) and copies them elsewhere. Falls back to {@link #COPY} if {@code cp} can't be started.
+     */
+    REFLINK
+}
@@ -0,0 +1,19 @@
+package com.indigobyte.maven.plugins;
+
+/**
+ * Decides whether a deploy to several hosts fails when some of them failed.
+ */
+public enum FailurePolicy {
+    /**
+     * Fail if any host failed.
+     */
+    ANY,
+    /**
+     * Fail only if every host failed.
+     */
+    ALL,
+    /**
+     * Only report failed hosts.
+     */
+    NEVER
+}
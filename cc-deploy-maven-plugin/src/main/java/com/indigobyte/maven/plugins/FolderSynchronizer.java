@@ -1,15 +1,22 @@
 package com.indigobyte.maven.plugins;
 
+import com.indigobyte.deploy.DigestAlgorithm;
+import com.indigobyte.deploy.DirectoryIndex;
+import com.indigobyte.deploy.FingerprintCache;
 import com.indigobyte.deploy.LocalAnalyzer;
 import org.apache.maven.plugin.AbstractMojo;
 import org.apache.maven.plugin.MojoExecutionException;
 import org.apache.maven.plugin.MojoFailureException;
 import org.apache.maven.plugins.annotations.Mojo;
 import org.apache.maven.plugins.annotations.Parameter;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
 import java.io.IOException;
 import java.nio.file.*;
+import java.util.Collection;
 import java.util.Set;
+import java.util.TreeSet;
 
 @Mojo(name = "sync-folder")
 public class FolderSynchronizer extends AbstractMojo {
@@ -22,78 +29,141 @@ public class FolderSynchronizer extends AbstractMojo {
     @Parameter(property = "syncFolder.checksumFile", required = true)
     private String checksumFile;
 
+    @Parameter(property = "syncFolder.analyzerThreads", defaultValue = "1")
+    private int analyzerThreads;
+
+    @Parameter(property = "syncFolder.digestAlgorithm", defaultValue = "MD5")
+    private DigestAlgorithm digestAlgorithm;
+
+    @Parameter(property = "syncFolder.fingerprintCacheFile")
+    private String fingerprintCacheFile;
+
+    @Parameter(property = "syncFolder.contentStable", defaultValue = "false")
+    private boolean contentStable;
+
+    @Parameter(property = "syncFolder.indexFile")
+    private String indexFile;
+
+    @Parameter(property = "syncFolder.trustFolderTimes", defaultValue = "false")
+    private boolean trustFolderTimes;
+
+    @Parameter(property = "syncFolder.copyThreads", defaultValue = "1")
+    private int copyThreads;
+
+    @Parameter(property = "syncFolder.copyMode", defaultValue = "COPY")
+    private CopyMode copyMode;
+
     public void execute() throws MojoExecutionException, MojoFailureException {
         getLog().info("FolderSynchronizer mojo has started");
+        byte[] oldChecksumBytes = null;
+        try {
+            oldChecksumBytes = Files.readAllBytes(getChecksumFile());
+        } catch (NoSuchFileException ignored) {
+        } catch (Throwable e) {
+            getLog().warn("Unable to read old checksum bytes from  " + getChecksumFile(), e);
+        }
+        synchronize(oldChecksumBytes);
+    }
+
+    @NotNull
+    Path getSourceFolder() {
+        return Paths.get(sourceFolder);
+    }
+
+    @NotNull
+    Path getDestFolder() {
+        return Paths.get(destFolder);
+    }
+
+    @NotNull
+    Path getChecksumFile() {
+        return Paths.get(checksumFile);
+    }
+
+    @NotNull
+    DigestAlgorithm getDigestAlgorithm() {
+        return digestAlgorithm;
+    }
+
+    /**
+     * Synchronizes the whole destination folder with the source one and writes new checksums.
+     *
+     * @param oldChecksumBytes checksums of files in the destination folder
+     * @return analyzer holding new checksums
+     */
+    @NotNull
+    LocalAnalyzer synchronize(@Nullable byte[] oldChecksumBytes) throws MojoExecutionException {
         getLog().info("Synchronizing folder " + destFolder + " with " + sourceFolder + " based on checksums from file " + checksumFile);
 
-        Path sourceFolderPath = Paths.get(this.sourceFolder);
-        Path fileWithChecksums = Paths.get(checksumFile);
-        LocalAnalyzer analyzer = null;
+        Path sourceFolderPath = getSourceFolder();
+        Path fileWithChecksums = getChecksumFile();
+        LocalAnalyzer analyzer;
         try {
-            byte[] oldChecksumBytes = null;
-            try {
-                oldChecksumBytes = Files.readAllBytes(fileWithChecksums);
-            } catch (NoSuchFileException ignored) {
-            } catch (Throwable e) {
-                getLog().warn("Unable to read old checksum bytes from  " + fileWithChecksums, e);
+            FingerprintCache fingerprintCache = null;
+            if (fingerprintCacheFile != null && !fingerprintCacheFile.isEmpty()) {
+                fingerprintCache = FingerprintCache.load(getLog(), Paths.get(fingerprintCacheFile), digestAlgorithm, contentStable);
+            }
+            DirectoryIndex directoryIndex = null;
+            if (indexFile != null && !indexFile.isEmpty()) {
+                directoryIndex = DirectoryIndex.load(getLog(), Paths.get(indexFile), trustFolderTimes);
+            }
+            analyzer = new LocalAnalyzer(getLog(), sourceFolderPath, oldChecksumBytes, analyzerThreads, digestAlgorithm, fingerprintCache, directoryIndex, false, null);
+            if (fingerprintCache != null) {
+                fingerprintCache.save(Paths.get(fingerprintCacheFile), sourceFolderPath);
+            }
+            if (directoryIndex != null) {
+                directoryIndex.save(Paths.get(indexFile));
             }
-
-            analyzer = new LocalAnalyzer(getLog(), sourceFolderPath, oldChecksumBytes);
         } catch (IOException e) {
             throw new MojoExecutionException("Unable to initialize folder synchronization", e);
         }
 
-        Path destFolderPath = Paths.get(this.destFolder);
-
-        Set<Path> filesToRemove = analyzer.getFilesToRemove();
-        for (Path path : filesToRemove) {
-            Path targetPath = destFolderPath.resolve(path).normalize();
-            if (targetPath.toFile().exists()) {
-                try {
-                    getLog().debug("Deleting path " + targetPath);
-                    Files.delete(targetPath);
-                } catch (IOException e) {
-                    throw new MojoExecutionException("Unable to remove file / folder " + targetPath, e);
-                }
-            } else {
-                getLog().debug("Path " + targetPath + " is already deleted by third party");
-            }
-        }
+        Path destFolderPath = getDestFolder();
+
+        TreeSet<Path> filesToRemove = analyzer.getFilesToRemove();
+        removeFiles(destFolderPath, filesToRemove);
 
         Set<Path> filesToCopy = analyzer.getFilesToCopy();
-        for (Path path : filesToCopy) {
-            Path sourcePath = sourceFolderPath.resolve(path).normalize();
-            Path targetPath = destFolderPath.resolve(path).normalize();
-            if (targetPath.toFile().isFile()) {
-                if (targetPath.toFile().isDirectory()) {
-                    try {
-                        getLog().debug("Deleting path " + targetPath);
-                        Files.delete(targetPath);
-                    } catch (IOException e) {
-                        throw new MojoExecutionException("Unable to remove target folder " + targetPath + " in order to replace it with file " + sourcePath, e);
-                    }
-                }
-                try {
-                    targetPath.getParent().toFile().mkdirs();
-                    getLog().debug("Copying file " + sourcePath + " to " + targetPath);
-                    Files.copy(sourcePath, targetPath, StandardCopyOption.COPY_ATTRIBUTES, StandardCopyOption.REPLACE_EXISTING);
-                } catch (IOException e) {
-                    throw new MojoExecutionException("Unable to copy file " + sourcePath + " to " + targetPath, e);
-                }
-            } else {
-                getLog().debug("Creating folder " + path + " as " + targetPath);
-                targetPath.toFile().mkdirs();
-            }
-        }
+        copyFiles(sourceFolderPath, destFolderPath, filesToCopy);
         if (filesToCopy.isEmpty() && filesToRemove.isEmpty()) {
             getLog().info("Resources didn't change");
         } else {
-            getLog().info("Files copied: " + filesToCopy.size() + ", files removed: " + filesToRemove.size());
+            getLog().info("Files copied: " + filesToCopy.size() + ", files removed: " + filesToRemove.size() + ", files unchanged: " + analyzer.getUnchangedFiles().size());
         }
         try {
-            analyzer.writeNewChecksums(fileWithChecksums);
+            if (!analyzer.writeNewChecksums(fileWithChecksums, oldChecksumBytes)) {
+                getLog().debug("Checksums didn't change, " + fileWithChecksums + " wasn't rewritten");
+            }
         } catch (IOException e) {
             throw new MojoExecutionException("Unable to save new checksums in file " + fileWithChecksums, e);
         }
+        return analyzer;
+    }
+
+    /**
+     * @param paths paths relative to {@code destFolderPath}
+     */
+    void removeFiles(@NotNull Path destFolderPath, @NotNull TreeSet<Path> paths) throws MojoExecutionException {
+        try {
+            newFolderUpdater().remove(destFolderPath, paths);
+        } catch (IOException e) {
+            throw new MojoExecutionException(e.getMessage(), e);
+        }
+    }
+
+    /**
+     * @param paths paths relative to {@code sourceFolderPath} and {@code destFolderPath}
+     */
+    void copyFiles(@NotNull Path sourceFolderPath, @NotNull Path destFolderPath, @NotNull Collection<Path> paths) throws MojoExecutionException {
+        try {
+            newFolderUpdater().copy(sourceFolderPath, destFolderPath, paths);
+        } catch (IOException e) {
+            throw new MojoExecutionException(e.getMessage(), e);
+        }
+    }
+
+    @NotNull
+    FolderUpdater newFolderUpdater() {
+        return new FolderUpdater(getLog(), copyMode, copyThreads <= 0 ? Runtime.getRuntime().availableProcessors() : copyThreads);
     }
 }
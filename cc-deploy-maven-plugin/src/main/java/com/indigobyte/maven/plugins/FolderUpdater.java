@@ -0,0 +1,307 @@
+package com.indigobyte.maven.plugins;
+
+import org.apache.maven.plugin.logging.Log;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.PosixFileAttributes;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Copies and removes files of a destination folder on a bounded pool of threads. A folder is created before any of its
+ * files is copied, and removed only after all removed files in it are gone.
+ */
+class FolderUpdater {
+    private static final int REFLINK_BATCH_SIZE = 256;
+
+    @NotNull
+    private final Log log;
+    @NotNull
+    private final CopyMode copyMode;
+    private final int threadCount;
+    @NotNull
+    private final Set<Path> createdFolders = ConcurrentHashMap.newKeySet();
+    @NotNull
+    private final AtomicBoolean fallbackReported = new AtomicBoolean();
+    private volatile boolean fallbackToCopy;
+
+    FolderUpdater(@NotNull Log log, @NotNull CopyMode copyMode, int threadCount) {
+        this.log = log;
+        this.copyMode = copyMode;
+        this.threadCount = threadCount;
+    }
+
+    /**
+     * @param paths paths relative to {@code destFolder}
+     */
+    void remove(@NotNull Path destFolder, @NotNull TreeSet<Path> paths) throws IOException {
+        // Folders still contain files removed by other threads, they are removed afterwards, children first
+        Queue<Path> notEmptyFolders = new ConcurrentLinkedQueue<>();
+        List<Callable<Void>> tasks = new ArrayList<>(paths.size());
+        for (Path path : paths) {
+            Path targetPath = destFolder.resolve(path).normalize();
+            tasks.add(() -> {
+                try {
+                    if (!Files.deleteIfExists(targetPath)) {
+                        log.debug("Path " + targetPath + " is already deleted by third party");
+                    }
+                } catch (DirectoryNotEmptyException e) {
+                    notEmptyFolders.add(targetPath);
+                } catch (IOException e) {
+                    throw new IOException("Unable to remove file / folder " + targetPath, e);
+                }
+                return null;
+            });
+        }
+        run(tasks);
+        TreeSet<Path> folders = new TreeSet<>(notEmptyFolders);
+        for (Path folder : folders.descendingSet()) {
+            try {
+                Files.deleteIfExists(folder);
+            } catch (DirectoryNotEmptyException e) {
+                log.warn("Folder " + folder + " wasn't removed because it contains other files");
+            } catch (IOException e) {
+                throw new IOException("Unable to remove file / folder " + folder, e);
+            }
+        }
+    }
+
+    /**
+     * @param paths paths relative to {@code sourceFolder} and {@code destFolder}
+     */
+    void copy(@NotNull Path sourceFolder, @NotNull Path destFolder, @NotNull Collection<Path> paths) throws IOException {
+        List<Callable<Void>> tasks = new ArrayList<>();
+        List<Path> reflinkedFiles = new ArrayList<>();
+        for (Path path : paths) {
+            Path sourcePath = sourceFolder.resolve(path).normalize();
+            Path targetPath = destFolder.resolve(path).normalize();
+            if (copyMode == CopyMode.REFLINK && !fallbackToCopy && Files.isRegularFile(sourcePath)) {
+                replaceFolder(sourcePath, targetPath);
+                createParentFolder(targetPath);
+                reflinkedFiles.add(path);
+                if (reflinkedFiles.size() == REFLINK_BATCH_SIZE) {
+                    List<Path> batch = new ArrayList<>(reflinkedFiles);
+                    tasks.add(() -> reflink(sourceFolder, destFolder, batch));
+                    reflinkedFiles.clear();
+                }
+            } else {
+                tasks.add(() -> copy(sourcePath, targetPath, path));
+            }
+        }
+        if (!reflinkedFiles.isEmpty()) {
+            tasks.add(() -> reflink(sourceFolder, destFolder, reflinkedFiles));
+        }
+        run(tasks);
+    }
+
+    private Void copy(@NotNull Path sourcePath, @NotNull Path targetPath, @NotNull Path path) throws IOException {
+        BasicFileAttributes attributes;
+        try {
+            attributes = readAttributes(sourcePath);
+        } catch (NoSuchFileException e) {
+            throw new IOException("Unable to copy file " + sourcePath + " to " + targetPath, e);
+        }
+        if (!attributes.isRegularFile()) {
+            log.debug("Creating folder " + path + " as " + targetPath);
+            createFolder(targetPath);
+            return null;
+        }
+        replaceFolder(sourcePath, targetPath);
+        try {
+            createParentFolder(targetPath);
+            log.debug("Copying file " + sourcePath + " to " + targetPath);
+            // A new file is created, so a hard link made in the link mode doesn't get the new content in both folders
+            Files.deleteIfExists(targetPath);
+            if (copyMode == CopyMode.LINK && !fallbackToCopy) {
+                try {
+                    Files.createLink(targetPath, sourcePath);
+                    return null;
+                } catch (UnsupportedOperationException | FileSystemException e) {
+                    fallBackToCopy("Unable to create hard link " + targetPath + " (" + e + ")");
+                }
+            }
+            transfer(sourcePath, targetPath, attributes);
+        } catch (IOException e) {
+            throw new IOException("Unable to copy file " + sourcePath + " to " + targetPath, e);
+        }
+        return null;
+    }
+
+    private static void transfer(@NotNull Path sourcePath, @NotNull Path targetPath, @NotNull BasicFileAttributes attributes) throws IOException {
+        try (FileChannel source = FileChannel.open(sourcePath, StandardOpenOption.READ);
+             FileChannel target = FileChannel.open(targetPath, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+            long size = source.size();
+            long position = 0;
+            while (position < size) {
+                long transferred = source.transferTo(position, size - position, target);
+                if (transferred <= 0) {
+                    // The file was truncated while being copied
+                    break;
+                }
+                position += transferred;
+            }
+        }
+        if (attributes instanceof PosixFileAttributes) {
+            Files.setPosixFilePermissions(targetPath, ((PosixFileAttributes) attributes).permissions());
+        }
+        Files.setLastModifiedTime(targetPath, attributes.lastModifiedTime());
+    }
+
+    private Void reflink(@NotNull Path sourceFolder, @NotNull Path destFolder, @NotNull List<Path> paths) throws IOException {
+        if (fallbackToCopy) {
+            copyOneByOne(sourceFolder, destFolder, paths);
+            return null;
+        }
+        // As in copy(), cp must create new files instead of writing into hard links made in the link mode
+        for (Path path : paths) {
+            Path targetPath = destFolder.resolve(path).normalize();
+            try {
+                Files.deleteIfExists(targetPath);
+            } catch (IOException e) {
+                throw new IOException("Unable to copy file " + sourceFolder.resolve(path) + " to " + targetPath, e);
+            }
+        }
+        List<String> command = new ArrayList<>(paths.size() + 6);
+        Collections.addAll(command, "cp", "--reflink=auto", "--preserve=mode,timestamps", "--parents", "-t", destFolder.toAbsolutePath().toString(), "--");
+        for (Path path : paths) {
+            command.add(path.toString());
+        }
+        Process process;
+        try {
+            process = new ProcessBuilder(command)
+                    .directory(sourceFolder.toFile())
+                    .redirectErrorStream(true)
+                    .start();
+        } catch (IOException e) {
+            fallBackToCopy("Unable to start cp (" + e.getMessage() + ")");
+            copyOneByOne(sourceFolder, destFolder, paths);
+            return null;
+        }
+        String output = readAll(process.getInputStream());
+        try {
+            int exitCode = process.waitFor();
+            if (exitCode != 0) {
+                throw new IOException("Unable to copy files from " + sourceFolder + " to " + destFolder + ", cp exited with " + exitCode + ": " + output.trim());
+            }
+        } catch (InterruptedException e) {
+            process.destroy();
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Copying was interrupted");
+        }
+        if (log.isDebugEnabled()) {
+            for (Path path : paths) {
+                log.debug("Copying file " + sourceFolder.resolve(path) + " to " + destFolder.resolve(path));
+            }
+        }
+        return null;
+    }
+
+    private void copyOneByOne(@NotNull Path sourceFolder, @NotNull Path destFolder, @NotNull List<Path> paths) throws IOException {
+        for (Path path : paths) {
+            copy(sourceFolder.resolve(path).normalize(), destFolder.resolve(path).normalize(), path);
+        }
+    }
+
+    private void fallBackToCopy(@NotNull String reason) {
+        fallbackToCopy = true;
+        if (fallbackReported.compareAndSet(false, true)) {
+            log.warn(reason + ", files are copied instead");
+        }
+    }
+
+    /**
+     * Removes an empty folder which is replaced with a file.
+     */
+    private void replaceFolder(@NotNull Path sourcePath, @NotNull Path targetPath) throws IOException {
+        if (Files.isDirectory(targetPath, LinkOption.NOFOLLOW_LINKS)) {
+            try {
+                log.debug("Deleting path " + targetPath);
+                Files.delete(targetPath);
+            } catch (IOException e) {
+                throw new IOException("Unable to remove target folder " + targetPath + " in order to replace it with file " + sourcePath, e);
+            }
+            createdFolders.remove(targetPath);
+        }
+    }
+
+    private void createParentFolder(@NotNull Path targetPath) throws IOException {
+        Path parent = targetPath.getParent();
+        if (parent != null) {
+            createFolder(parent);
+        }
+    }
+
+    private void createFolder(@NotNull Path folder) throws IOException {
+        if (!createdFolders.contains(folder)) {
+            Files.createDirectories(folder);
+            createdFolders.add(folder);
+        }
+    }
+
+    @NotNull
+    private static BasicFileAttributes readAttributes(@NotNull Path file) throws IOException {
+        try {
+            return Files.readAttributes(file, PosixFileAttributes.class);
+        } catch (UnsupportedOperationException e) {
+            return Files.readAttributes(file, BasicFileAttributes.class);
+        }
+    }
+
+    @NotNull
+    private static String readAll(@NotNull InputStream is) throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        int read;
+        while ((read = is.read(buffer)) != -1) {
+            baos.write(buffer, 0, read);
+        }
+        return baos.toString();
+    }
+
+    private void run(@NotNull List<Callable<Void>> tasks) throws IOException {
+        int poolSize = Math.min(threadCount, tasks.size());
+        if (poolSize <= 1) {
+            for (Callable<Void> task : tasks) {
+                try {
+                    task.call();
+                } catch (IOException | RuntimeException e) {
+                    throw e;
+                } catch (Exception e) {
+                    throw new IOException(e);
+                }
+            }
+            return;
+        }
+        ExecutorService executor = Executors.newFixedThreadPool(poolSize);
+        try {
+            List<Future<Void>> futures = new ArrayList<>(tasks.size());
+            for (Callable<Void> task : tasks) {
+                futures.add(executor.submit(task));
+            }
+            for (Future<Void> future : futures) {
+                try {
+                    future.get();
+                } catch (ExecutionException e) {
+                    Throwable cause = e.getCause();
+                    if (cause instanceof IOException) {
+                        throw (IOException) cause;
+                    }
+                    throw new IOException("Unable to update folder", cause);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Folder update was interrupted");
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+}
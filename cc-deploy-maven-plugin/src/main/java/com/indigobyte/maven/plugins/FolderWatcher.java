@@ -0,0 +1,308 @@
+package com.indigobyte.maven.plugins;
+
+import com.indigobyte.deploy.Checksum;
+import com.indigobyte.deploy.ChecksumManifest;
+import com.indigobyte.deploy.LocalAnalyzer;
+import org.apache.maven.plugin.MojoExecutionException;
+import org.apache.maven.plugin.MojoFailureException;
+import org.apache.maven.plugins.annotations.Mojo;
+import org.apache.maven.plugins.annotations.Parameter;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Keeps the destination folder synchronized with the source one until the build is interrupted. After a full
+ * synchronization every source folder is watched; changed paths are collected until no events arrive for
+ * {@code syncFolder.debounceMillis} and only they are copied or removed. Checksums are kept in memory and written
+ * periodically, so the next run of {@code sync-folder} or {@code watch-folder} starts from them. If the watch queue
+ * overflows, the folders are synchronized in full again.
+ */
+@Mojo(name = "watch-folder")
+public class FolderWatcher extends FolderSynchronizer {
+    @Parameter(property = "syncFolder.debounceMillis", defaultValue = "20")
+    private int debounceMillis;
+
+    @Parameter(property = "syncFolder.checksumWriteSeconds", defaultValue = "5")
+    private int checksumWriteSeconds;
+
+    @NotNull
+    private final Map<WatchKey, Path> watchedFolders = new HashMap<>();
+    @NotNull
+    private final TreeMap<String, Checksum> checksums = new TreeMap<>();
+    private boolean checksumsChanged;
+
+    @Override
+    public void execute() throws MojoExecutionException, MojoFailureException {
+        getLog().info("FolderWatcher mojo has started");
+        byte[] oldChecksumBytes = null;
+        try {
+            oldChecksumBytes = Files.readAllBytes(getChecksumFile());
+        } catch (NoSuchFileException ignored) {
+        } catch (Throwable e) {
+            getLog().warn("Unable to read old checksum bytes from  " + getChecksumFile(), e);
+        }
+        Thread shutdownHook = new Thread(() -> {
+            try {
+                writeChecksums();
+            } catch (IOException e) {
+                getLog().warn("Unable to save checksums in file " + getChecksumFile(), e);
+            }
+        }, "watch-folder-shutdown");
+        try (WatchService watchService = getSourceFolder().getFileSystem().newWatchService()) {
+            resynchronize(watchService, oldChecksumBytes);
+            Runtime.getRuntime().addShutdownHook(shutdownHook);
+            getLog().info("Watching " + getSourceFolder() + " for changes, press Ctrl+C to stop");
+            watch(watchService);
+        } catch (IOException e) {
+            throw new MojoExecutionException("Unable to watch folder " + getSourceFolder(), e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            getLog().info("Watching was interrupted");
+        } finally {
+            try {
+                Runtime.getRuntime().removeShutdownHook(shutdownHook);
+            } catch (IllegalStateException ignored) {
+                // The JVM is already shutting down, the hook writes checksums
+            }
+        }
+        try {
+            writeChecksums();
+        } catch (IOException e) {
+            throw new MojoExecutionException("Unable to save new checksums in file " + getChecksumFile(), e);
+        }
+    }
+
+    private void watch(@NotNull WatchService watchService) throws IOException, InterruptedException, MojoExecutionException {
+        long checksumWriteMillis = TimeUnit.SECONDS.toMillis(Math.max(1, checksumWriteSeconds));
+        long nextChecksumWrite = System.currentTimeMillis() + checksumWriteMillis;
+        while (true) {
+            WatchKey key = watchService.poll(Math.max(1, nextChecksumWrite - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+            if (key != null) {
+                long started = System.nanoTime();
+                TreeSet<Path> changedPaths = new TreeSet<>();
+                boolean overflow = collectEvents(key, changedPaths);
+                // Events of one save usually come in a burst, they are applied together; the burst is cut after a while,
+                // so that a file which is written continuously doesn't stop synchronization
+                long burstEnd = started + TimeUnit.MILLISECONDS.toNanos(Math.max(1, debounceMillis) * 10L);
+                while (System.nanoTime() < burstEnd && (key = watchService.poll(Math.max(1, debounceMillis), TimeUnit.MILLISECONDS)) != null) {
+                    overflow |= collectEvents(key, changedPaths);
+                }
+                if (overflow) {
+                    getLog().warn("Too many changes at once, synchronizing the whole folder");
+                    resynchronize(watchService, getChecksumBytes());
+                } else {
+                    try {
+                        int appliedChanges;
+                        synchronized (checksums) {
+                            appliedChanges = applyChanges(watchService, changedPaths);
+                        }
+                        if (appliedChanges > 0) {
+                            getLog().info("Synchronized " + appliedChanges + " changed files in " + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started) + " ms");
+                        }
+                    } catch (IOException e) {
+                        getLog().warn("Unable to apply changes, synchronizing the whole folder", e);
+                        resynchronize(watchService, getChecksumBytes());
+                    }
+                }
+            }
+            if (System.currentTimeMillis() >= nextChecksumWrite) {
+                writeChecksums();
+                nextChecksumWrite = System.currentTimeMillis() + checksumWriteMillis;
+            }
+        }
+    }
+
+    /**
+     * @return whether events were lost
+     */
+    private boolean collectEvents(@NotNull WatchKey key, @NotNull Set<Path> changedPaths) {
+        Path folder = watchedFolders.get(key);
+        boolean overflow = false;
+        for (WatchEvent<?> event : key.pollEvents()) {
+            if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                overflow = true;
+            } else if (folder != null) {
+                changedPaths.add(folder.resolve((Path) event.context()));
+            }
+        }
+        if (!key.reset()) {
+            watchedFolders.remove(key);
+        }
+        return overflow;
+    }
+
+    /**
+     * Copies and removes changed files. Checksums are updated only after all of them were copied and removed, so if
+     * anything fails, the next synchronization still sees the failed files as changed.
+     *
+     * @return number of files copied or removed
+     */
+    int applyChanges(@NotNull WatchService watchService, @NotNull TreeSet<Path> changedPaths) throws IOException {
+        Path sourceFolder = getSourceFolder();
+        Path destFolder = getDestFolder();
+        TreeSet<Path> filesToRemove = new TreeSet<>();
+        List<Path> filesToCopy = new ArrayList<>();
+        TreeMap<String, Checksum> changedChecksums = new TreeMap<>();
+        List<String> removedChecksums = new ArrayList<>();
+        AtomicInteger checksumsCalculated = new AtomicInteger();
+        for (Path path : changedPaths) {
+            Path relativePath = sourceFolder.relativize(path);
+            if (Files.isDirectory(path)) {
+                if (!register(watchService, path)) {
+                    // Attributes of a watched folder changed, its files come as separate events
+                    continue;
+                }
+                // Files may have been created before the folder was registered, so all of them are checked
+                Files.walkFileTree(path, EnumSet.of(FileVisitOption.FOLLOW_LINKS), Integer.MAX_VALUE, new SimpleFileVisitor<Path>() {
+                    @Override
+                    public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attributes) throws IOException {
+                        register(watchService, dir);
+                        Files.createDirectories(destFolder.resolve(sourceFolder.relativize(dir)));
+                        return FileVisitResult.CONTINUE;
+                    }
+
+                    @Override
+                    public FileVisitResult visitFile(Path file, BasicFileAttributes attributes) throws IOException {
+                        checkFile(file, filesToCopy, changedChecksums, checksumsCalculated);
+                        return FileVisitResult.CONTINUE;
+                    }
+                });
+            } else if (Files.exists(path)) {
+                checkFile(path, filesToCopy, changedChecksums, checksumsCalculated);
+            } else {
+                for (String checksumPath : findChecksums(checksums, Checksum.extractFilePath(path, sourceFolder))) {
+                    filesToRemove.add(Paths.get(checksumPath));
+                    removedChecksums.add(checksumPath);
+                }
+                // Temporary files of editors are usually removed before they are synchronized
+                if (Files.exists(destFolder.resolve(relativePath), LinkOption.NOFOLLOW_LINKS)) {
+                    filesToRemove.add(relativePath);
+                }
+            }
+        }
+        FolderUpdater folderUpdater = newFolderUpdater();
+        folderUpdater.remove(destFolder, filesToRemove);
+        folderUpdater.copy(sourceFolder, destFolder, filesToCopy);
+        if (!removedChecksums.isEmpty() || !changedChecksums.isEmpty()) {
+            checksums.keySet().removeAll(removedChecksums);
+            checksums.putAll(changedChecksums);
+            checksumsChanged = true;
+        }
+        return filesToCopy.size() + filesToRemove.size();
+    }
+
+    /**
+     * @return paths of checksums of a file, or of all files of a folder
+     */
+    @NotNull
+    static List<String> findChecksums(@NotNull TreeMap<String, Checksum> checksums, @NotNull String filePath) {
+        List<String> result = new ArrayList<>();
+        if (checksums.containsKey(filePath)) {
+            result.add(filePath);
+        }
+        // Siblings like "img-old" or "img.png" sort between "img" and "img/", so files of the folder are selected by
+        // their prefix; '0' follows '/'
+        result.addAll(checksums.subMap(filePath + "/", filePath + "0").keySet());
+        return result;
+    }
+
+    private void checkFile(
+            @NotNull Path file,
+            @NotNull List<Path> filesToCopy,
+            @NotNull TreeMap<String, Checksum> changedChecksums,
+            @NotNull AtomicInteger checksumsCalculated
+    ) throws IOException {
+        if (file.getFileName().toString().equals(".gitignore")) {
+            return;
+        }
+        Path sourceFolder = getSourceFolder();
+        String filePath = Checksum.extractFilePath(file, sourceFolder);
+        if (changedChecksums.containsKey(filePath)) {
+            // Already checked as a file of a new folder
+            return;
+        }
+        Checksum oldChecksum = checksums.get(filePath);
+        Checksum checksum;
+        try {
+            checksum = new Checksum(file, sourceFolder, oldChecksum, getDigestAlgorithm(), checksumsCalculated);
+        } catch (NoSuchFileException e) {
+            // Removed while being checked, the removal comes as another event
+            return;
+        }
+        if (!checksum.equals(oldChecksum)) {
+            filesToCopy.add(checksum.getPath());
+        }
+        if (oldChecksum == null || checksum.getLastModified() != oldChecksum.getLastModified() || !checksum.equals(oldChecksum)) {
+            changedChecksums.put(filePath, checksum);
+        }
+    }
+
+    /**
+     * Synchronizes the whole folder and watches all its subfolders.
+     */
+    private void resynchronize(@NotNull WatchService watchService, @Nullable byte[] oldChecksumBytes) throws IOException, MojoExecutionException {
+        LocalAnalyzer analyzer = synchronize(oldChecksumBytes);
+        synchronized (checksums) {
+            checksums.clear();
+            for (Checksum checksum : analyzer.getNewChecksums()) {
+                checksums.put(checksum.getFilePath(), checksum);
+            }
+            checksumsChanged = false;
+        }
+        for (WatchKey key : watchedFolders.keySet()) {
+            key.cancel();
+        }
+        watchedFolders.clear();
+        Files.walkFileTree(getSourceFolder(), EnumSet.of(FileVisitOption.FOLLOW_LINKS), Integer.MAX_VALUE, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attributes) throws IOException {
+                register(watchService, dir);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+        getLog().debug("Watching " + watchedFolders.size() + " folders");
+    }
+
+    /**
+     * @return whether the folder wasn't watched before
+     */
+    private boolean register(@NotNull WatchService watchService, @NotNull Path folder) throws IOException {
+        WatchKey key = folder.register(
+                watchService,
+                StandardWatchEventKinds.ENTRY_CREATE,
+                StandardWatchEventKinds.ENTRY_DELETE,
+                StandardWatchEventKinds.ENTRY_MODIFY
+        );
+        return watchedFolders.put(key, folder) == null;
+    }
+
+    @NotNull
+    private byte[] getChecksumBytes() throws IOException {
+        synchronized (checksums) {
+            ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            ChecksumManifest.write(checksums.values(), getDigestAlgorithm(), baos);
+            return baos.toByteArray();
+        }
+    }
+
+    private void writeChecksums() throws IOException {
+        synchronized (checksums) {
+            if (!checksumsChanged) {
+                return;
+            }
+            Path fileWithChecksums = getChecksumFile();
+            fileWithChecksums.toAbsolutePath().getParent().toFile().mkdirs();
+            Files.write(fileWithChecksums, getChecksumBytes());
+            checksumsChanged = false;
+            getLog().debug("Checksums were written to " + fileWithChecksums);
+        }
+    }
+}
@@ -0,0 +1,99 @@
+package com.indigobyte.maven.plugins;
+
+import org.apache.maven.plugin.logging.Log;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Prefixes messages with the host name, so output of concurrent deploys to several hosts can be told apart.
+ */
+class HostLog implements Log {
+    @NotNull
+    private final Log log;
+    @NotNull
+    private final String prefix;
+
+    HostLog(@NotNull Log log, @NotNull String hostName) {
+        this.log = log;
+        this.prefix = "[" + hostName + "] ";
+    }
+
+    @Override
+    public boolean isDebugEnabled() {
+        return log.isDebugEnabled();
+    }
+
+    @Override
+    public void debug(CharSequence content) {
+        log.debug(prefix + content);
+    }
+
+    @Override
+    public void debug(CharSequence content, Throwable error) {
+        log.debug(prefix + content, error);
+    }
+
+    @Override
+    public void debug(Throwable error) {
+        log.debug(prefix + error, error);
+    }
+
+    @Override
+    public boolean isInfoEnabled() {
+        return log.isInfoEnabled();
+    }
+
+    @Override
+    public void info(CharSequence content) {
+        log.info(prefix + content);
+    }
+
+    @Override
+    public void info(CharSequence content, Throwable error) {
+        log.info(prefix + content, error);
+    }
+
+    @Override
+    public void info(Throwable error) {
+        log.info(prefix + error, error);
+    }
+
+    @Override
+    public boolean isWarnEnabled() {
+        return log.isWarnEnabled();
+    }
+
+    @Override
+    public void warn(CharSequence content) {
+        log.warn(prefix + content);
+    }
+
+    @Override
+    public void warn(CharSequence content, Throwable error) {
+        log.warn(prefix + content, error);
+    }
+
+    @Override
+    public void warn(Throwable error) {
+        log.warn(prefix + error, error);
+    }
+
+    @Override
+    public boolean isErrorEnabled() {
+        return log.isErrorEnabled();
+    }
+
+    @Override
+    public void error(CharSequence content) {
+        log.error(prefix + content);
+    }
+
+    @Override
+    public void error(CharSequence content, Throwable error) {
+        log.error(prefix + content, error);
+    }
+
+    @Override
+    public void error(Throwable error) {
+        log.error(prefix + error, error);
+    }
+}
@@ -0,0 +1,165 @@
+package com.indigobyte.maven.plugins;
+
+import com.indigobyte.deploy.Utils;
+import com.indigobyte.ssh.AbstractSshClient;
+import org.apache.maven.plugin.logging.Log;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.TimeZone;
+
+/**
+ * Release folders of an application deployed in blue/green mode. The application folder is a symbolic link to one of
+ * the releases in the sibling folder {@code <warName>.releases}. A new release is built as a hard link copy of the live
+ * one plus the changes, and the link is switched by a single rename. Every release has a copy of its checksum file
+ * next to it, so it can be activated again without uploading anything.
+ */
+class Releases {
+    private static final String CHECKSUMS_SUFFIX = ".checksums";
+
+    @NotNull
+    private final Log log;
+    @NotNull
+    private final AbstractSshClient sshClient;
+    @NotNull
+    private final String remoteWebApps;
+    @NotNull
+    private final String warName;
+
+    Releases(@NotNull Log log, @NotNull AbstractSshClient sshClient, @NotNull String remoteWebApps, @NotNull String warName) {
+        this.log = log;
+        this.sshClient = sshClient;
+        this.remoteWebApps = remoteWebApps;
+        this.warName = warName;
+    }
+
+    /**
+     * @return identifier of a new release; identifiers are ordered by the time of creation
+     */
+    @NotNull
+    static String newReleaseId() {
+        SimpleDateFormat format = new SimpleDateFormat("yyyyMMdd-HHmmss-SSS");
+        format.setTimeZone(TimeZone.getTimeZone("UTC"));
+        return format.format(new Date());
+    }
+
+    @NotNull
+    String getAppRoot() {
+        return remoteWebApps + "/" + warName;
+    }
+
+    @NotNull
+    String getReleaseRoot(@NotNull String releaseId) {
+        return getReleasesRoot() + "/" + releaseId;
+    }
+
+    @NotNull
+    private String getReleasesRoot() {
+        return getAppRoot() + ".releases";
+    }
+
+    /**
+     * Turns an application folder which was deployed in place into the first release.
+     */
+    void convertAppFolder(@NotNull String remoteChecksumFile) throws IOException {
+        String releaseId = newReleaseId();
+        log.info("Converting application folder " + getAppRoot() + " into release " + releaseId);
+        sshClient.executeCommand("mkdir -p " + Utils.shellQuote(getReleasesRoot()) +
+                " && mv " + Utils.shellQuote(getAppRoot()) + " " + Utils.shellQuote(getReleaseRoot(releaseId)) +
+                " && ln -s " + Utils.shellQuote(warName + ".releases/" + releaseId) + " " + Utils.shellQuote(getAppRoot()));
+        saveChecksums(releaseId, remoteChecksumFile);
+    }
+
+    /**
+     * Creates a new release as a hard link copy of the live one. Files in it must be replaced, not overwritten,
+     * otherwise the live release is changed too.
+     */
+    void create(@NotNull String releaseId) throws IOException {
+        String releaseRoot = Utils.shellQuote(getReleaseRoot(releaseId));
+        log.info("Creating release " + releaseId);
+        sshClient.executeCommand("mkdir -p " + Utils.shellQuote(getReleasesRoot()) +
+                " && if [ -d " + Utils.shellQuote(getAppRoot()) + " ]; then cp -al " + Utils.shellQuote(getAppRoot() + "/.") + " " + releaseRoot +
+                "; else mkdir " + releaseRoot + "; fi");
+    }
+
+    void remove(@NotNull String releaseId) throws IOException {
+        log.info("Removing release " + releaseId);
+        sshClient.executeCommand("rm -rf -- " + Utils.shellQuote(getReleaseRoot(releaseId)) + " " + Utils.shellQuote(getReleaseRoot(releaseId) + CHECKSUMS_SUFFIX));
+    }
+
+    /**
+     * Points the application folder to the release. The link is replaced by a rename, so the application is never
+     * missing or half updated.
+     */
+    void activate(@NotNull String releaseId) throws IOException {
+        String tempLink = Utils.shellQuote(getAppRoot() + ".new-release");
+        sshClient.executeCommand("ln -sfn " + Utils.shellQuote(warName + ".releases/" + releaseId) + " " + tempLink +
+                " && mv -T " + tempLink + " " + Utils.shellQuote(getAppRoot()));
+        log.info("Release " + releaseId + " is live");
+    }
+
+    /**
+     * @return identifier of the release the application folder points to, {@code null} if it isn't a link to a release
+     */
+    @Nullable
+    String getLiveRelease() throws IOException {
+        String target = sshClient.executeCommand("readlink " + Utils.shellQuote(getAppRoot()) + " || true").trim();
+        String prefix = warName + ".releases/";
+        return target.startsWith(prefix) ? target.substring(prefix.length()) : null;
+    }
+
+    /**
+     * @return identifiers of all releases, oldest first
+     */
+    @NotNull
+    List<String> list() throws IOException {
+        String output = sshClient.executeCommand("ls -1 " + Utils.shellQuote(getReleasesRoot()) + " 2>/dev/null || true");
+        List<String> result = new ArrayList<>();
+        for (String name : output.split("\n")) {
+            name = name.trim();
+            if (!name.isEmpty() && !name.endsWith(CHECKSUMS_SUFFIX)) {
+                result.add(name);
+            }
+        }
+        Collections.sort(result);
+        return result;
+    }
+
+    /**
+     * Removes releases older than the live one, so that the live release and at most {@code count - 1} releases before
+     * it are left. Releases newer than the live one, which remain after a rollback, are kept and not counted. If the
+     * application folder isn't a link to a release, the newest {@code count} releases are kept.
+     */
+    void keepLatest(int count) throws IOException {
+        if (count < 1) {
+            throw new IllegalArgumentException("At least one release must be kept, but count is " + count);
+        }
+        List<String> releases = list();
+        int liveIndex = releases.indexOf(getLiveRelease());
+        int end = liveIndex >= 0 ? liveIndex + 1 : releases.size();
+        for (int i = 0; i < end - count; ++i) {
+            remove(releases.get(i));
+        }
+    }
+
+    void saveChecksums(@NotNull String releaseId, @NotNull String remoteChecksumFile) throws IOException {
+        sshClient.executeCommand("if [ -f " + Utils.shellQuote(remoteChecksumFile) + " ]; then cp " + Utils.shellQuote(remoteChecksumFile) +
+                " " + Utils.shellQuote(getReleaseRoot(releaseId) + CHECKSUMS_SUFFIX) + "; fi");
+    }
+
+    /**
+     * Makes the checksum file of the application describe the release. If the release has no saved checksums, the
+     * checksum file is removed, so the next deploy compares all files.
+     */
+    void restoreChecksums(@NotNull String releaseId, @NotNull String remoteChecksumFile) throws IOException {
+        String savedChecksums = Utils.shellQuote(getReleaseRoot(releaseId) + CHECKSUMS_SUFFIX);
+        sshClient.executeCommand("if [ -f " + savedChecksums + " ]; then cp " + savedChecksums + " " + Utils.shellQuote(remoteChecksumFile) +
+                "; else rm -f " + Utils.shellQuote(remoteChecksumFile) + "; fi");
+    }
+}
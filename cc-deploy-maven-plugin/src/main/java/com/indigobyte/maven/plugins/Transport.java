@@ -0,0 +1,19 @@
+package com.indigobyte.maven.plugins;
+
+/**
+ * How changed files are transferred to the remote machine.
+ */
+public enum Transport {
+    /**
+     * ZIP archive is created locally, uploaded via SFTP and unpacked with {@code jar xvf}.
+     */
+    ZIP,
+    /**
+     * Tar stream is piped into {@code tar x} on the remote machine without temporary archives.
+     */
+    TAR,
+    /**
+     * Same as {@link #TAR}, but the stream is gzip compressed.
+     */
+    TAR_GZIP
+}
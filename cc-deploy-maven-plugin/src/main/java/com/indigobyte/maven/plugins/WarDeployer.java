@@ -16,31 +16,54 @@ package com.indigobyte.maven.plugins;
  * limitations under the License.
  */
 
-import com.indigobyte.deploy.LocalAnalyzer;
-import com.indigobyte.deploy.Utils;
+import com.indigobyte.deploy.*;
 import com.indigobyte.ssh.AbstractSshClient;
 import com.indigobyte.sshj.SshSshjImpl;
 import org.apache.maven.plugin.AbstractMojo;
 import org.apache.maven.plugin.MojoExecutionException;
 import org.apache.maven.plugin.MojoFailureException;
+import org.apache.maven.plugin.logging.Log;
 import org.apache.maven.plugins.annotations.Mojo;
 import org.apache.maven.plugins.annotations.Parameter;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.util.Set;
+import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.zip.Deflater;
 
 @Mojo(name = "deploy-war", threadSafe = true)
 public class WarDeployer extends AbstractMojo {
     @Parameter(property = "deploy.warName", required = true)
     private String warName;
 
-    @Parameter(property = "deploy.hostName", required = true)
+    @Parameter(property = "deploy.hostName")
     private String hostName;
 
+    @Parameter(property = "deploy.hostNames")
+    private String[] hostNames;
+
+    @Parameter(property = "deploy.hostParallelism", defaultValue = "8")
+    private int hostParallelism;
+
+    @Parameter(property = "deploy.failurePolicy", defaultValue = "ANY")
+    private FailurePolicy failurePolicy;
+
+    @Parameter(property = "deploy.relaySeeds", defaultValue = "0")
+    private int relaySeeds;
+
     @Parameter(property = "deploy.port", required = false, defaultValue = "22")
     private int port;
 
@@ -65,137 +88,982 @@ public class WarDeployer extends AbstractMojo {
     @Parameter(property = "deploy.uploadRetryCount", defaultValue = "0")
     private int uploadRetryCount;
 
+    @Parameter(property = "deploy.uploadThreads", defaultValue = "1")
+    private int uploadThreads;
+
+    @Parameter(property = "deploy.reuseConnection", defaultValue = "false")
+    private boolean reuseConnection;
+
     @Parameter(defaultValue = "true")
     private boolean touchWebXml;
 
+    @Parameter(property = "deploy.analyzerThreads", defaultValue = "1")
+    private int analyzerThreads;
+
+    @Parameter(property = "deploy.pipelined", defaultValue = "false")
+    private boolean pipelined;
+
+    @Parameter(property = "deploy.digestAlgorithm", defaultValue = "MD5")
+    private DigestAlgorithm digestAlgorithm;
+
+    @Parameter(property = "deploy.fingerprintCacheFile")
+    private String fingerprintCacheFile;
+
+    @Parameter(property = "deploy.contentStable", defaultValue = "false")
+    private boolean contentStable;
+
+    @Parameter(property = "deploy.jarDelta", defaultValue = "false")
+    private boolean jarDelta;
+
+    @Parameter(property = "deploy.deltaTransferThreshold", defaultValue = "0")
+    private long deltaTransferThreshold;
+
+    @Parameter(property = "deploy.deltaBlockSize", defaultValue = "65536")
+    private int deltaBlockSize;
+
+    @Parameter(property = "deploy.compressionProfile", defaultValue = "SMALLEST")
+    private CompressionProfile compressionProfile;
+
+    @Parameter(property = "deploy.linkBandwidth", defaultValue = "0")
+    private int linkBandwidth;
+
+    @Parameter(property = "deploy.archiveThreads", defaultValue = "0")
+    private int archiveThreads;
+
+    @Parameter(property = "deploy.transport", defaultValue = "ZIP")
+    private Transport transport;
+
+    @Parameter(property = "deploy.releases", defaultValue = "0")
+    private int releases;
+
+    @Parameter(property = "deploy.verifyRemote", defaultValue = "false")
+    private boolean verifyRemote;
+
+    private CompressionPolicy compressionPolicy;
+
     public void execute() throws MojoExecutionException, MojoFailureException {
         getLog().info("WarDeployer mojo has started");
         Path remoteAppRoot = Paths.get(remoteWebApps, warName);
         Path remoteAppChecksumFile = Paths.get(remoteWebApps, warName + ".checksums");
         Path localAppRoot = Paths.get(projectBuildDir, warName);
-        try (AbstractSshClient sshClient = new SshSshjImpl(
-                getLog(),
-                chunkSize,
-                uploadRetryCount,
-                hostName,
-                port,
-                userName,
-                sshKeyFile
-        )) {
-            getLog().info("Checking remote checksum file" + remoteAppChecksumFile);
-            byte[] remoteChecksumFileBytes = null;
-
-            String remoteAppChecksumFileNode = Utils.linuxPath(remoteAppChecksumFile);
-            if (sshClient.folderExists(remoteAppChecksumFileNode) ||
-                    sshClient.symbolicLinkExists(remoteAppChecksumFileNode)
-            ) {
-                getLog().error(remoteAppChecksumFileNode + " is not a file!");
-                throw new MojoFailureException(remoteAppChecksumFileNode + " is not a file!");
-            }
-
-            //Create remote app root directory
-            String remoteAppRootNode = Utils.linuxPath(remoteAppRoot);
-            if (sshClient.regularFileExists(remoteAppRootNode) ||
-                    sshClient.symbolicLinkExists(remoteAppRootNode)
-            ) {
+        List<HostDeployment> hosts = new ArrayList<>();
+        for (String host : getHostNames()) {
+            hosts.add(new HostDeployment(host));
+        }
+        FingerprintCache fingerprintCache = null;
+        if (fingerprintCacheFile != null && !fingerprintCacheFile.isEmpty()) {
+            fingerprintCache = FingerprintCache.load(getLog(), Paths.get(fingerprintCacheFile), digestAlgorithm, contentStable);
+        }
+        DigestAlgorithm verificationAlgorithm = digestAlgorithm.getRemoteCommand() != null ? digestAlgorithm : DigestAlgorithm.MD5;
+        compressionPolicy = new CompressionPolicy(getLog(), compressionProfile, linkBandwidth);
+        String releaseId = releases > 0 ? Releases.newReleaseId() : null;
+        try {
+            runOnHosts(hosts, host -> {
+                Log hostLog = hosts.size() > 1 ? new HostLog(getLog(), host.hostName) : getLog();
+                host.log = hostLog;
+                host.sshClient = new SshSshjImpl(
+                        hostLog,
+                        chunkSize,
+                        uploadRetryCount,
+                        verificationAlgorithm,
+                        uploadThreads,
+                        reuseConnection,
+                        host.hostName,
+                        port,
+                        userName,
+                        sshKeyFile
+                );
+                prepareRemoteApp(hostLog, host, remoteAppRoot, remoteAppChecksumFile, releaseId);
+                if (verifyRemote) {
+                    host.remoteChecksumFileBytes = RemoteManifestVerifier.verify(
+                            hostLog,
+                            host.sshClient,
+                            host.remoteChecksumFileBytes,
+                            Utils.linuxPath(remoteAppRoot),
+                            Utils.linuxPath(remoteAppChecksumFile),
+                            localAppRoot,
+                            digestAlgorithm
+                    );
+                }
+            });
+            // Hosts with the same remote manifest need the same changes, so they share one analysis and one archive
+            Map<String, List<HostDeployment>> hostsByManifest = new LinkedHashMap<>();
+            for (HostDeployment host : hosts) {
+                if (host.failure == null) {
+                    String manifestDigest = host.remoteChecksumFileBytes == null
+                            ? ""
+                            : Utils.getDigest(new ByteArrayInputStream(host.remoteChecksumFileBytes));
+                    hostsByManifest.computeIfAbsent(manifestDigest, k -> new ArrayList<>()).add(host);
+                }
+            }
+            if (hostsByManifest.size() > 1) {
+                getLog().info("Hosts have " + hostsByManifest.size() + " different states, local files will be analyzed for each of them");
+            }
+            for (List<HostDeployment> group : hostsByManifest.values()) {
+                byte[] remoteChecksumFileBytes = group.get(0).remoteChecksumFileBytes;
+                if (pipelined && hosts.size() == 1) {
+                    deployPipelined(group.get(0), remoteChecksumFileBytes, fingerprintCache, verificationAlgorithm, localAppRoot, remoteAppRoot, remoteAppChecksumFile);
+                    continue;
+                }
+                if (pipelined) {
+                    getLog().info("Pipelined mode is ignored when deploying to several hosts");
+                }
+                LocalAnalyzer analyzer = new LocalAnalyzer(getLog(), localAppRoot, remoteChecksumFileBytes, analyzerThreads, digestAlgorithm, fingerprintCache, jarDelta, null);
+                Set<Path> filesToCopy = analyzer.getFilesToCopy();
+                if (!filesToCopy.isEmpty()) {
+                    Utils.logFiles(getLog(), filesToCopy, "Changed files were found", Path::toString);
+                }
+                if (deltaTransferThreshold > 0) {
+                    updateBlockSignatures(analyzer, filesToCopy, localAppRoot);
+                }
+                Map<Set<Path>, File> archives = new HashMap<>();
+                List<HostDeployment> seeds = group;
+                List<HostDeployment> relayTargets = Collections.emptyList();
+                if (relaySeeds > 0 && group.size() > relaySeeds) {
+                    // Seeds get archives from this machine and relay them to the other hosts over the internal network
+                    seeds = group.subList(0, relaySeeds);
+                    relayTargets = group.subList(relaySeeds, group.size());
+                    for (int i = 0; i < relayTargets.size(); ++i) {
+                        relayTargets.get(i).seed = seeds.get(i % seeds.size());
+                    }
+                    for (HostDeployment seed : seeds) {
+                        seed.relayArchives = new HashMap<>();
+                    }
+                    getLog().info("Archives will be uploaded to " + seeds.size() + " seed host(s) and relayed to " + relayTargets.size() + " other host(s)");
+                }
+                HostTask deployTask = host -> {
+                    uploadChangedFiles(host, analyzer, filesToCopy, localAppRoot, getTargetRoot(host, remoteAppRoot), archives);
+                    finishDeployment(host, analyzer, remoteAppRoot, remoteAppChecksumFile);
+                };
+                try {
+                    runOnHosts(seeds, deployTask);
+                    runOnHosts(relayTargets, deployTask);
+                } finally {
+                    for (File archive : archives.values()) {
+                        archive.delete();
+                    }
+                    for (HostDeployment seed : seeds) {
+                        removeRelayArchives(seed);
+                    }
+                }
+            }
+            if (fingerprintCache != null) {
+                fingerprintCache.save(Paths.get(fingerprintCacheFile), localAppRoot);
+            }
+        } catch (IOException e) {
+            getLog().error(e);
+            e.printStackTrace();
+            throw new MojoExecutionException("Error during execution of the deploy script", e);
+        } finally {
+            for (HostDeployment host : hosts) {
+                discardRelease(host, Utils.linuxPath(remoteAppChecksumFile));
+                if (host.sshClient != null) {
+                    try {
+                        host.sshClient.close();
+                    } catch (IOException e) {
+                        getLog().warn("Unable to close connection to " + host.hostName, e);
+                    }
+                }
+            }
+        }
+        reportResults(hosts);
+    }
+
+    @NotNull
+    private List<String> getHostNames() throws MojoFailureException {
+        List<String> result = new ArrayList<>();
+        if (hostNames != null) {
+            for (String host : hostNames) {
+                if (host != null && !host.trim().isEmpty() && !result.contains(host.trim())) {
+                    result.add(host.trim());
+                }
+            }
+        }
+        if (result.isEmpty()) {
+            if (hostName == null || hostName.isEmpty()) {
+                throw new MojoFailureException("Either deploy.hostName or deploy.hostNames must be specified");
+            }
+            result.add(hostName);
+        }
+        return result;
+    }
+
+    /**
+     * Runs the task for every host, at most {@code hostParallelism} at once. Failures are recorded in the hosts.
+     */
+    private void runOnHosts(@NotNull List<HostDeployment> hosts, @NotNull HostTask task) throws IOException {
+        List<HostDeployment> activeHosts = new ArrayList<>();
+        for (HostDeployment host : hosts) {
+            if (host.failure == null) {
+                activeHosts.add(host);
+            }
+        }
+        if (activeHosts.size() == 1) {
+            runOnHost(activeHosts.get(0), task);
+            return;
+        }
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, Math.min(hostParallelism, activeHosts.size())));
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (HostDeployment host : activeHosts) {
+                futures.add(executor.submit(() -> runOnHost(host, task)));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Deploy was interrupted");
+        } catch (ExecutionException e) {
+            throw new IOException(e.getCause());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private void runOnHost(@NotNull HostDeployment host, @NotNull HostTask task) {
+        try {
+            task.run(host);
+        } catch (Exception e) {
+            getLog().error("Deploy to " + host.hostName + " failed", e);
+            host.failure = e;
+        }
+    }
+
+    private void reportResults(@NotNull List<HostDeployment> hosts) throws MojoExecutionException, MojoFailureException {
+        int failedHosts = 0;
+        for (HostDeployment host : hosts) {
+            if (host.failure != null) {
+                ++failedHosts;
+            }
+        }
+        if (hosts.size() == 1) {
+            Exception failure = hosts.get(0).failure;
+            if (failure instanceof MojoFailureException) {
+                throw (MojoFailureException) failure;
+            }
+            if (failure != null) {
+                failure.printStackTrace();
+                throw new MojoExecutionException("Error during execution of the deploy script", failure);
+            }
+            return;
+        }
+        getLog().info("Deploy results:");
+        for (HostDeployment host : hosts) {
+            if (host.failure == null) {
+                getLog().info(host.hostName + ": OK, " + host.copiedFiles + " file(s) copied, " + host.removedFiles + " file(s) removed");
+            } else {
+                getLog().error(host.hostName + ": FAILED, " + host.failure.getMessage());
+            }
+        }
+        if (failedHosts > 0 && (failurePolicy == FailurePolicy.ANY || failurePolicy == FailurePolicy.ALL && failedHosts == hosts.size())) {
+            throw new MojoExecutionException("Deploy failed on " + failedHosts + " of " + hosts.size() + " hosts");
+        }
+    }
+
+    /**
+     * Checks remote paths, creates the application folder if it doesn't exist and downloads the remote checksum file.
+     *
+     * @param hostLog   log of the host, which is also used by its release folders
+     * @param releaseId identifier of the release to create in blue/green mode, {@code null} to update the application
+     *                  folder in place
+     */
+    private void prepareRemoteApp(
+            @NotNull Log hostLog,
+            @NotNull HostDeployment host,
+            @NotNull Path remoteAppRoot,
+            @NotNull Path remoteAppChecksumFile,
+            @Nullable String releaseId
+    ) throws IOException, MojoFailureException {
+        AbstractSshClient sshClient = host.sshClient;
+        getLog().info("Checking remote checksum file" + remoteAppChecksumFile);
+        String remoteAppChecksumFileNode = Utils.linuxPath(remoteAppChecksumFile);
+        if (sshClient.folderExists(remoteAppChecksumFileNode) ||
+                sshClient.symbolicLinkExists(remoteAppChecksumFileNode)
+        ) {
+            getLog().error(remoteAppChecksumFileNode + " is not a file!");
+            throw new MojoFailureException(remoteAppChecksumFileNode + " is not a file!");
+        }
+
+        String remoteAppRootNode = Utils.linuxPath(remoteAppRoot);
+        if (releaseId != null) {
+            if (sshClient.regularFileExists(remoteAppRootNode)) {
                 getLog().error(remoteAppRootNode + " is not a directory!");
                 throw new MojoFailureException(remoteAppRootNode + " is not a directory!");
+            }
+            Releases releases = new Releases(hostLog, sshClient, Utils.linuxPath(Paths.get(remoteWebApps)), warName);
+            if (sshClient.folderExists(remoteAppRootNode)) {
+                releases.convertAppFolder(remoteAppChecksumFileNode);
+            }
+            downloadRemoteChecksums(host, remoteAppChecksumFile);
+            releases.create(releaseId);
+            host.releases = releases;
+            host.releaseId = releaseId;
+            return;
+        }
+
+        //Create remote app root directory
+        if (sshClient.regularFileExists(remoteAppRootNode) ||
+                sshClient.symbolicLinkExists(remoteAppRootNode)
+        ) {
+            getLog().error(remoteAppRootNode + " is not a directory!");
+            throw new MojoFailureException(remoteAppRootNode + " is not a directory!");
+        } else {
+            if (!sshClient.folderExists(remoteAppRootNode)) {
+                getLog().info("Creating remote directory for application at " + Utils.linuxPath(remoteAppRoot));
+                sshClient.mkdir(remoteAppRootNode);
             } else {
-                if (!sshClient.folderExists(remoteAppRootNode)) {
-                    getLog().info("Creating remote directory for application at " + Utils.linuxPath(remoteAppRoot));
-                    sshClient.mkdir(remoteAppRootNode);
-                } else {
-                    if (sshClient.regularFileExists(remoteAppChecksumFileNode)) {
-                        getLog().info("Downloading remote checksum file" + remoteAppChecksumFile);
-                        File remoteChecksumTempFile = File.createTempFile("remote-checksum", ".tmp");
-                        remoteChecksumTempFile.delete();
-                        sshClient.downloadRemoteFile(remoteAppChecksumFileNode, remoteChecksumTempFile.getAbsolutePath());
-                        remoteChecksumFileBytes = Files.readAllBytes(remoteChecksumTempFile.toPath());
-                        remoteChecksumTempFile.delete();
-                    }
+                downloadRemoteChecksums(host, remoteAppChecksumFile);
+            }
+        }
+    }
+
+    private void downloadRemoteChecksums(@NotNull HostDeployment host, @NotNull Path remoteAppChecksumFile) throws IOException {
+        String remoteAppChecksumFileNode = Utils.linuxPath(remoteAppChecksumFile);
+        if (host.sshClient.regularFileExists(remoteAppChecksumFileNode)) {
+            getLog().info("Downloading remote checksum file" + remoteAppChecksumFile);
+            File remoteChecksumTempFile = File.createTempFile("remote-checksum", ".tmp");
+            remoteChecksumTempFile.delete();
+            host.sshClient.downloadRemoteFile(remoteAppChecksumFileNode, remoteChecksumTempFile.getAbsolutePath());
+            host.remoteChecksumFileBytes = Files.readAllBytes(remoteChecksumTempFile.toPath());
+            remoteChecksumTempFile.delete();
+        }
+    }
+
+    /**
+     * @return folder where changed files of the host are written: the new release in blue/green mode, otherwise the
+     * application folder itself
+     */
+    @NotNull
+    private static Path getTargetRoot(@NotNull HostDeployment host, @NotNull Path remoteAppRoot) {
+        if (host.releases == null || host.releaseId == null) {
+            return remoteAppRoot;
+        }
+        return Paths.get(host.releases.getReleaseRoot(host.releaseId));
+    }
+
+    /**
+     * Removes the new release of the host if it wasn't activated because nothing changed or the deploy failed. If the
+     * checksum file was already replaced, it's made to describe the live release again.
+     */
+    private void discardRelease(@NotNull HostDeployment host, @NotNull String remoteChecksumFile) {
+        if (host.releases == null || host.releaseId == null || host.releaseActivated) {
+            return;
+        }
+        try {
+            if (host.checksumsUploaded) {
+                String liveRelease = host.releases.getLiveRelease();
+                if (liveRelease != null) {
+                    host.releases.restoreChecksums(liveRelease, remoteChecksumFile);
+                } else if (host.sshClient.regularFileExists(remoteChecksumFile)) {
+                    host.sshClient.rm(remoteChecksumFile);
                 }
             }
+            host.releases.remove(host.releaseId);
+        } catch (IOException e) {
+            getLog().warn("Unable to remove release " + host.releaseId + " from " + host.hostName, e);
+        }
+    }
 
-            LocalAnalyzer analyzer = new LocalAnalyzer(getLog(), localAppRoot, remoteChecksumFileBytes);
+    /**
+     * In blue/green mode, removes files which are about to be overwritten from the new release, so the hard links
+     * shared with the live release aren't written through.
+     */
+    private void detachReplacedFiles(
+            @NotNull HostDeployment host,
+            @NotNull Set<Path> files,
+            @NotNull Path localAppRoot,
+            @NotNull Path targetRoot
+    ) throws IOException {
+        if (host.releaseId == null) {
+            return;
+        }
+        List<String> replacedFiles = new ArrayList<>();
+        for (Path path : files) {
+            if (Files.isRegularFile(localAppRoot.resolve(path))) {
+                replacedFiles.add(Utils.linuxPath(path));
+            }
+        }
+        host.sshClient.removeRemotePaths(Utils.linuxPath(targetRoot), replacedFiles);
+    }
 
+    /**
+     * Streams changed files to a single host while they are still being analyzed.
+     */
+    private void deployPipelined(
+            @NotNull HostDeployment host,
+            @Nullable byte[] remoteChecksumFileBytes,
+            @Nullable FingerprintCache fingerprintCache,
+            @NotNull DigestAlgorithm verificationAlgorithm,
+            @NotNull Path localAppRoot,
+            @NotNull Path remoteAppRoot,
+            @NotNull Path remoteAppChecksumFile
+    ) throws IOException {
+        AbstractSshClient sshClient = host.sshClient;
+        Path targetRoot = getTargetRoot(host, remoteAppRoot);
+        String remoteTempArchive = "/tmp/war-deployer-" + System.currentTimeMillis() + ".zip";
+        getLog().info("Changed files will be streamed to remote archive " + remoteTempArchive + " while analysis is running");
+        AtomicBoolean remoteArchiveCreated = new AtomicBoolean();
+        LocalAnalyzer analyzer;
+        try {
+            String archiveDigest;
+            try (PipelinedArchiveWriter archiveWriter = new PipelinedArchiveWriter(
+                    getLog(),
+                    localAppRoot,
+                    () -> {
+                        remoteArchiveCreated.set(true);
+                        return sshClient.openRemoteFileForWriting(remoteTempArchive);
+                    },
+                    verificationAlgorithm,
+                    compressionPolicy
+            )) {
+                // Files which may be shipped as deltas are handled after analysis because the delta needs old checksums
+                IChangeListener changeListener = path -> {
+                    if (!isDeferred(localAppRoot, path)) {
+                        archiveWriter.fileChanged(path);
+                    }
+                };
+                analyzer = new LocalAnalyzer(getLog(), localAppRoot, remoteChecksumFileBytes, analyzerThreads, digestAlgorithm, fingerprintCache, jarDelta, changeListener);
+                archiveDigest = archiveWriter.finish();
+            }
             Set<Path> filesToCopy = analyzer.getFilesToCopy();
-            Set<Path> filesToRemove = analyzer.getFilesToRemove();
-            if (!filesToCopy.isEmpty()) {
+            Set<Path> filesToUpload = new TreeSet<>();
+            Set<Path> streamedFiles = new TreeSet<>();
+            for (Path path : filesToCopy) {
+                if (isDeferred(localAppRoot, path)) {
+                    filesToUpload.add(path);
+                } else {
+                    streamedFiles.add(path);
+                }
+            }
+            if (archiveDigest != null) {
                 Utils.logFiles(getLog(), filesToCopy, "Changed files were found", Path::toString);
-                File tempFile = File.createTempFile("war-deployer", ".tmp");
-//                    FileNode tempFile = world.getTemp().createTempFile();
-                getLog().info("Archive containing changed and new files will be created in temporary file " + tempFile);
-                Utils.createAchive(filesToCopy, localAppRoot, tempFile.getAbsolutePath());
-                String remoteTempArchive = "/tmp/" + tempFile.getName();
-                sshClient.uploadLocalFile(tempFile, remoteTempArchive);
-                getLog().info("Unpacking remote archive");
-                sshClient.executeCommand("cd " + Utils.linuxPath(remoteAppRoot) + ";jar xvf /tmp/" + tempFile.getName());
-                getLog().info("Temp archive was unpacked. Removing temporary files");
-                sshClient.rm(remoteTempArchive);
-                tempFile.delete();
-                getLog().info("Changed file(s) were uploaded to the remote machine");
+                String remoteDigest = sshClient.getRemoteDigest(remoteTempArchive);
+                if (remoteDigest.equals(archiveDigest)) {
+                    detachReplacedFiles(host, streamedFiles, localAppRoot, targetRoot);
+                    unpackRemoteArchive(sshClient, targetRoot, remoteTempArchive, false);
+                } else {
+                    getLog().warn("Checksum mismatch of streamed archive, changed files will be uploaded again." +
+                            "\nLocal checksum: " + archiveDigest +
+                            "\nRemote checksum: " + remoteDigest
+                    );
+                    filesToUpload.addAll(streamedFiles);
+                }
+            }
+            uploadChangedFiles(host, analyzer, filesToUpload, localAppRoot, targetRoot, null);
+            if (deltaTransferThreshold > 0) {
+                updateBlockSignatures(analyzer, filesToCopy, localAppRoot);
+            }
+        } finally {
+            if (remoteArchiveCreated.get()) {
+                try {
+                    sshClient.rm(remoteTempArchive);
+                } catch (IOException e) {
+                    getLog().warn("Unable to remove remote archive " + remoteTempArchive, e);
+                }
             }
-            if (!filesToRemove.isEmpty()) {
-                Utils.logFiles(getLog(), filesToRemove, "files must be deleted from the remote machine", Path::toString);
+        }
+        finishDeployment(host, analyzer, remoteAppRoot, remoteAppChecksumFile);
+    }
+
+    /**
+     * Removes deleted files, uploads new checksums, touches web.xml and purges nginx cache.
+     */
+    private void finishDeployment(
+            @NotNull HostDeployment host,
+            @NotNull LocalAnalyzer analyzer,
+            @NotNull Path remoteAppRoot,
+            @NotNull Path remoteAppChecksumFile
+    ) throws IOException {
+        Log log = host.log;
+        AbstractSshClient sshClient = host.sshClient;
+        String remoteAppChecksumFileNode = Utils.linuxPath(remoteAppChecksumFile);
+        Path targetRoot = getTargetRoot(host, remoteAppRoot);
+        Set<Path> filesToCopy = analyzer.getFilesToCopy();
+        Set<Path> filesToRemove = analyzer.getFilesToRemove();
+        if (!filesToRemove.isEmpty()) {
+            Utils.logFiles(log, filesToRemove, "files must be deleted from the remote machine", Path::toString);
 
-                for (Path curFile : filesToRemove) {
-                    Path pathOfFileToDelete = remoteAppRoot.resolve(curFile);
-                    String nameOfFileToDelete = Utils.linuxPath(pathOfFileToDelete);
-                    getLog().info("Removing " + pathOfFileToDelete);
-                    sshClient.rm(nameOfFileToDelete);
+            List<String> pathsToDelete = new ArrayList<>(filesToRemove.size());
+            for (Path curFile : filesToRemove) {
+                pathsToDelete.add(Utils.linuxPath(curFile));
+            }
+            // Folders which exist locally stay on the remote machine even if they become empty
+            Set<String> keptFolders = new HashSet<>();
+            for (Checksum checksum : analyzer.getNewChecksums()) {
+                if (checksum.isFolder()) {
+                    keptFolders.add(checksum.getFilePath());
                 }
-                getLog().info("Old file(s) were deleted from the remote machine");
             }
-            if (!filesToCopy.isEmpty() || !filesToRemove.isEmpty()) {
-                //Write new checksums
-                {
-                    File tempFile = File.createTempFile("war-deployer-checksum", "tmp");
-                    analyzer.writeNewChecksums(tempFile.toPath());
+            sshClient.removeRemotePaths(Utils.linuxPath(targetRoot), pathsToDelete, keptFolders);
+            log.info("Old file(s) were deleted from the remote machine");
+        }
+        host.copiedFiles = filesToCopy.size();
+        host.removedFiles = filesToRemove.size();
+        if (!filesToCopy.isEmpty() || !filesToRemove.isEmpty()) {
+            //Write new checksums
+            {
+                File tempFile = File.createTempFile("war-deployer-checksum", "tmp");
+                analyzer.writeNewChecksums(tempFile.toPath());
 
-                    getLog().info("Deleting old remote checksum file " + remoteAppChecksumFileNode);
-                    if (sshClient.regularFileExists(remoteAppChecksumFileNode)) {
-                        sshClient.rm(remoteAppChecksumFileNode);
-                    }
-                    getLog().info("Copying local file " + tempFile.getAbsolutePath() + " to " + remoteAppChecksumFileNode);
-                    sshClient.uploadLocalFile(tempFile, remoteAppChecksumFileNode);
-                    getLog().info("Removing temporary local checksum file " + tempFile.getAbsolutePath());
-                    tempFile.delete();
-                    getLog().info("New checksum file was uploaded to the remote machine");
-                }
-                if (touchWebXml) {
-                    sshClient.executeCommand("touch " + Utils.linuxPath(remoteAppRoot) + "/WEB-INF/web.xml");
-                    getLog().info("web.xml was touched");
+                log.info("Deleting old remote checksum file " + remoteAppChecksumFileNode);
+                host.checksumsUploaded = true;
+                if (sshClient.regularFileExists(remoteAppChecksumFileNode)) {
+                    sshClient.rm(remoteAppChecksumFileNode);
+                }
+                log.info("Copying local file " + tempFile.getAbsolutePath() + " to " + remoteAppChecksumFileNode);
+                sshClient.uploadLocalFile(tempFile, remoteAppChecksumFileNode);
+                log.info("Removing temporary local checksum file " + tempFile.getAbsolutePath());
+                tempFile.delete();
+                if (host.releases != null && host.releaseId != null) {
+                    host.releases.saveChecksums(host.releaseId, remoteAppChecksumFileNode);
+                }
+                log.info("New checksum file was uploaded to the remote machine");
+            }
+            // The release is switched to only when it's complete, checksums included
+            if (host.releases != null && host.releaseId != null) {
+                host.releases.activate(host.releaseId);
+                host.releaseActivated = true;
+                host.releases.keepLatest(releases);
+            }
+            if (touchWebXml) {
+                sshClient.executeCommand("touch " + Utils.linuxPath(remoteAppRoot) + "/WEB-INF/web.xml");
+                log.info("web.xml was touched");
+            } else {
+                log.info("web.xml was not touched because touchWebXml is " + touchWebXml);
+            }
+            if (nginxCacheDir != null && !nginxCacheDir.isEmpty()) {
+                Path nginxCache = Paths.get(nginxCacheDir);
+                String nginxCacheNode = Utils.linuxPath(nginxCache);
+                if (!sshClient.folderExists(nginxCacheNode)) {
+                    log.info("Nginx cache dir " + Utils.linuxPath(nginxCache) + " doesn't exist");
                 } else {
-                    getLog().info("web.xml was not touched because touchWebXml is " + touchWebXml);
-                }
-                if (nginxCacheDir != null && !nginxCacheDir.isEmpty()) {
-                    Path nginxCache = Paths.get(nginxCacheDir);
-                    String nginxCacheNode = Utils.linuxPath(nginxCache);
-                    if (!sshClient.folderExists(nginxCacheNode)) {
-                        getLog().info("Nginx cache dir " + Utils.linuxPath(nginxCache) + " doesn't exist");
-                    } else {
-                        if (sshClient.isEmptyFolder(nginxCacheNode)) {
-                            boolean emptyDir = sshClient.isEmptyFolder(nginxCacheNode);
-                            if (emptyDir) {
-                                getLog().info("Nginx cache dir " + Utils.linuxPath(nginxCache) + " is empty");
-                            } else {
-                                String purgeCommand = "sudo /usr/bin/find " + Utils.linuxPath(nginxCache) + " -mindepth 1 -delete";
-                                getLog().info("Purging nginx cache dir with command " + purgeCommand);
-                                sshClient.executeCommand(purgeCommand);
-                                getLog().info("Done");
-                            }
+                    if (sshClient.isEmptyFolder(nginxCacheNode)) {
+                        boolean emptyDir = sshClient.isEmptyFolder(nginxCacheNode);
+                        if (emptyDir) {
+                            log.info("Nginx cache dir " + Utils.linuxPath(nginxCache) + " is empty");
+                        } else {
+                            String purgeCommand = "sudo /usr/bin/find " + Utils.linuxPath(nginxCache) + " -mindepth 1 -delete";
+                            log.info("Purging nginx cache dir with command " + purgeCommand);
+                            sshClient.executeCommand(purgeCommand);
+                            log.info("Done");
                         }
                     }
-                } else {
-                    getLog().info("No Nginx cache dir specified: " + nginxCacheDir + " is empty");
                 }
             } else {
-                getLog().info("Nothing to do: local files are identical to the remote machine's ones");
+                log.info("No Nginx cache dir specified: " + nginxCacheDir + " is empty");
+            }
+        } else {
+            log.info("Nothing to do: local files are identical to the remote machine's ones");
+        }
+    }
+
+    /**
+     * @param archives archives already created for other hosts, keyed by their contents; {@code null} if the archive
+     *                 is needed only once
+     */
+    private void uploadArchive(
+            @NotNull HostDeployment host,
+            @NotNull Set<Path> files,
+            @NotNull Path localAppRoot,
+            @NotNull Path remoteAppRoot,
+            @Nullable Map<Set<Path>, File> archives
+    ) throws IOException {
+        detachReplacedFiles(host, files, localAppRoot, remoteAppRoot);
+        // Relaying needs an archive which stays on the seed host
+        if (transport != Transport.ZIP && host.seed == null && host.relayArchives == null) {
+            int gzipLevel = transport == Transport.TAR ? 0 : compressionProfile == CompressionProfile.FASTEST ? Deflater.BEST_SPEED : Deflater.BEST_COMPRESSION;
+            host.sshClient.uploadFilesAsTar(files, localAppRoot, Utils.linuxPath(remoteAppRoot), gzipLevel);
+            getLog().info("Changed file(s) were streamed to the remote machine");
+            return;
+        }
+        File tempFile;
+        if (archives == null) {
+            tempFile = createArchive(files, localAppRoot);
+        } else {
+            synchronized (archives) {
+                tempFile = archives.get(files);
+                if (tempFile == null) {
+                    tempFile = createArchive(files, localAppRoot);
+                    archives.put(new TreeSet<>(files), tempFile);
+                }
+            }
+        }
+        AbstractSshClient sshClient = host.sshClient;
+        String remoteTempArchive = "/tmp/" + tempFile.getName();
+        if (relayArchive(host, files, remoteTempArchive)) {
+            unpackRemoteArchive(sshClient, remoteAppRoot, remoteTempArchive);
+            return;
+        }
+        sshClient.uploadLocalFile(tempFile, remoteTempArchive);
+        if (host.relayArchives != null) {
+            String digest = Utils.getDigest(tempFile.toPath(), sshClient.getVerificationAlgorithm());
+            String remoteDigest = sshClient.getRemoteDigest(remoteTempArchive);
+            if (!remoteDigest.equals(digest)) {
+                sshClient.rm(remoteTempArchive);
+                throw new IOException("Checksum mismatch of archive uploaded to seed host." +
+                        "\nLocal checksum: " + digest +
+                        "\nRemote checksum: " + remoteDigest
+                );
+            }
+            // The archive is kept on the seed until all relay targets got it
+            synchronized (host.relayArchives) {
+                host.relayArchives.put(new TreeSet<>(files), new RelayArchive(remoteTempArchive, digest));
+            }
+            unpackRemoteArchive(sshClient, remoteAppRoot, remoteTempArchive, false);
+        } else {
+            unpackRemoteArchive(sshClient, remoteAppRoot, remoteTempArchive);
+        }
+        if (archives == null) {
+            tempFile.delete();
+        }
+    }
+
+    /**
+     * Copies the archive with the same files from the seed of the host, if there is one, and verifies its digest.
+     *
+     * @return whether the archive was relayed; if not, it must be uploaded from this machine
+     */
+    private boolean relayArchive(
+            @NotNull HostDeployment host,
+            @NotNull Set<Path> files,
+            @NotNull String remoteTempArchive
+    ) {
+        HostDeployment seed = host.seed;
+        if (seed == null || seed.failure != null || seed.relayArchives == null) {
+            return false;
+        }
+        RelayArchive archive;
+        synchronized (seed.relayArchives) {
+            archive = seed.relayArchives.get(files);
+        }
+        if (archive == null) {
+            return false;
+        }
+        try {
+            getLog().info("Relaying archive from " + seed.hostName + " to " + host.hostName);
+            // Host keys are checked against known_hosts of the user on the seed; an unknown host fails instead of a prompt
+            seed.sshClient.executeCommand("scp -q -o BatchMode=yes -P " + port + " " +
+                    archive.remotePath + " " + Utils.shellQuote(userName + "@" + host.hostName + ":" + remoteTempArchive));
+            String remoteDigest = host.sshClient.getRemoteDigest(remoteTempArchive);
+            if (remoteDigest.equals(archive.digest)) {
+                return true;
+            }
+            getLog().warn("Checksum mismatch of archive relayed to " + host.hostName + ", uploading it directly");
+        } catch (IOException | RuntimeException e) {
+            getLog().warn("Unable to relay archive from " + seed.hostName + " to " + host.hostName + ", uploading it directly", e);
+        }
+        removeRelayedArchive(host, remoteTempArchive);
+        return false;
+    }
+
+    /**
+     * Removes an archive which may have been partially relayed to the host.
+     */
+    private void removeRelayedArchive(@NotNull HostDeployment host, @NotNull String remoteTempArchive) {
+        try {
+            if (host.sshClient.regularFileExists(remoteTempArchive)) {
+                host.sshClient.rm(remoteTempArchive);
             }
         } catch (IOException e) {
-            getLog().error(e);
-            e.printStackTrace();
-            throw new MojoExecutionException("Error during execution of the deploy script", e);
+            getLog().warn("Unable to remove archive " + remoteTempArchive + " from " + host.hostName, e);
+        }
+    }
+
+    private void removeRelayArchives(@NotNull HostDeployment seed) {
+        if (seed.relayArchives == null || seed.sshClient == null) {
+            return;
+        }
+        for (RelayArchive archive : seed.relayArchives.values()) {
+            try {
+                seed.sshClient.rm(archive.remotePath);
+            } catch (IOException e) {
+                getLog().warn("Unable to remove archive " + archive.remotePath + " from seed host " + seed.hostName, e);
+            }
+        }
+    }
+
+    @NotNull
+    private File createArchive(@NotNull Set<Path> files, @NotNull Path localAppRoot) throws IOException {
+        File tempFile = File.createTempFile("war-deployer", ".tmp");
+//                    FileNode tempFile = world.getTemp().createTempFile();
+        getLog().info("Archive containing changed and new files will be created in temporary file " + tempFile);
+        Utils.createAchive(files, localAppRoot, tempFile.getAbsolutePath(), compressionPolicy, archiveThreads);
+        return tempFile;
+    }
+
+    /**
+     * @return whether the changed file may be shipped as a delta and therefore must not be streamed in pipelined mode
+     */
+    private boolean isDeferred(@NotNull Path localAppRoot, @NotNull Path path) {
+        if (jarDelta && Checksum.isJar(path)) {
+            return true;
+        }
+        return deltaTransferThreshold > 0 && localAppRoot.resolve(path).toFile().length() >= deltaTransferThreshold;
+    }
+
+    /**
+     * Uploads changed files as JAR deltas, binary deltas or, if neither is possible, in an archive.
+     */
+    private void uploadChangedFiles(
+            @NotNull HostDeployment host,
+            @NotNull LocalAnalyzer analyzer,
+            @NotNull Set<Path> files,
+            @NotNull Path localAppRoot,
+            @NotNull Path remoteAppRoot,
+            @Nullable Map<Set<Path>, File> archives
+    ) throws IOException {
+        if (files.isEmpty()) {
+            return;
+        }
+        AbstractSshClient sshClient = host.sshClient;
+        Set<Path> filesToArchive = new TreeSet<>(files);
+        List<JarDelta> jarDeltas = new ArrayList<>();
+        List<Path> fileDeltaCandidates = new ArrayList<>();
+        for (Path path : files) {
+            if (jarDelta && Checksum.isJar(path)) {
+                JarDelta delta = JarDelta.compute(path, analyzer.getOldChecksum(path), analyzer.getNewChecksum(path));
+                if (delta != null) {
+                    jarDeltas.add(delta);
+                    filesToArchive.remove(path);
+                    continue;
+                }
+            }
+            if (deltaTransferThreshold > 0 && localAppRoot.resolve(path).toFile().length() >= deltaTransferThreshold) {
+                Checksum oldChecksum = analyzer.getOldChecksum(path);
+                BlockSignatures signatures = oldChecksum != null ? oldChecksum.getBlockSignatures() : null;
+                if (signatures != null && signatures.getBlockSize() == deltaBlockSize) {
+                    fileDeltaCandidates.add(path);
+                    filesToArchive.remove(path);
+                }
+            }
+        }
+        filesToArchive.addAll(applyFileDeltas(sshClient, analyzer, fileDeltaCandidates, localAppRoot, remoteAppRoot));
+        filesToArchive.addAll(applyJarDeltas(sshClient, jarDeltas, localAppRoot, remoteAppRoot));
+        if (!filesToArchive.isEmpty()) {
+            uploadArchive(host, filesToArchive, localAppRoot, remoteAppRoot, archives);
+        }
+    }
+
+    /**
+     * @return files which couldn't be updated with a delta and must be uploaded as a whole
+     */
+    @NotNull
+    private List<Path> applyFileDeltas(
+            @NotNull AbstractSshClient sshClient,
+            @NotNull LocalAnalyzer analyzer,
+            @NotNull List<Path> files,
+            @NotNull Path localAppRoot,
+            @NotNull Path remoteAppRoot
+    ) throws IOException {
+        List<Path> failedFiles = new ArrayList<>();
+        for (Path path : files) {
+            Path localFile = localAppRoot.resolve(path);
+            BlockSignatures signatures = Objects.requireNonNull(analyzer.getOldChecksum(path)).getBlockSignatures();
+            File literalFile = File.createTempFile("file-delta", ".tmp");
+            FileDelta delta = FileDelta.compute(localFile, Objects.requireNonNull(signatures), literalFile.toPath());
+            if (delta.getLiteralBytes() * 10 >= localFile.toFile().length() * 9) {
+                getLog().info("Delta of " + path + " is too big, the file will be uploaded as a whole: " + delta);
+                literalFile.delete();
+                failedFiles.add(path);
+                continue;
+            }
+            getLog().info("Uploading delta of " + path + ": " + delta);
+            String remoteFile = Utils.linuxPath(remoteAppRoot.resolve(path));
+            String remoteNewFile = remoteFile + ".delta-new";
+            String remoteLiteralFile = "/tmp/" + literalFile.getName();
+            String remoteScript = remoteLiteralFile + ".sh";
+            File scriptFile = File.createTempFile("file-delta", ".sh");
+            Files.write(scriptFile.toPath(), delta.createScript(remoteFile, remoteLiteralFile, remoteNewFile).getBytes(StandardCharsets.UTF_8));
+            sshClient.uploadLocalFile(literalFile, remoteLiteralFile);
+            sshClient.uploadLocalFile(scriptFile, remoteScript);
+            literalFile.delete();
+            scriptFile.delete();
+            sshClient.executeCommand("sh " + remoteScript);
+            String localDigest = Utils.getDigest(localFile, sshClient.getVerificationAlgorithm());
+            String remoteDigest = sshClient.getRemoteDigest(Utils.shellQuote(remoteNewFile));
+            String cleanup = "rm -f " + remoteLiteralFile + " " + remoteScript;
+            if (localDigest.equals(remoteDigest)) {
+                // The old file is replaced only after the new one was verified
+                sshClient.executeCommand("mv -f " + Utils.shellQuote(remoteNewFile) + " " + Utils.shellQuote(remoteFile) + "; " + cleanup);
+            } else {
+                getLog().warn("Checksum mismatch after applying delta to " + remoteFile + ", the file will be uploaded as a whole");
+                sshClient.executeCommand("rm -f " + Utils.shellQuote(remoteNewFile) + "; " + cleanup);
+                failedFiles.add(path);
+            }
+        }
+        return failedFiles;
+    }
+
+    /**
+     * Calculates block signatures of large uploaded files, so the next deploy can upload only their changed blocks.
+     */
+    private void updateBlockSignatures(
+            @NotNull LocalAnalyzer analyzer,
+            @NotNull Set<Path> filesToCopy,
+            @NotNull Path localAppRoot
+    ) throws IOException {
+        for (Path path : filesToCopy) {
+            Path localFile = localAppRoot.resolve(path);
+            if (localFile.toFile().isFile() && localFile.toFile().length() >= deltaTransferThreshold) {
+                analyzer.setBlockSignatures(path, BlockSignatures.compute(localFile, deltaBlockSize));
+            }
+        }
+    }
+
+    /**
+     * Rebuilds JAR files on the remote machine. A rebuilt JAR replaces the old one only if it has exactly the files of
+     * the local JAR with the same digests.
+     *
+     * @return JAR files which couldn't be updated with a delta and must be uploaded as a whole
+     */
+    @NotNull
+    private List<Path> applyJarDeltas(
+            @NotNull AbstractSshClient sshClient,
+            @NotNull List<JarDelta> jarDeltas,
+            @NotNull Path localAppRoot,
+            @NotNull Path remoteAppRoot
+    ) throws IOException {
+        List<Path> failedFiles = new ArrayList<>();
+        if (jarDeltas.isEmpty()) {
+            return failedFiles;
+        }
+        Utils.logFiles(getLog(), jarDeltas, "JAR files will be updated with deltas", JarDelta::toString);
+        DigestAlgorithm algorithm = sshClient.getVerificationAlgorithm();
+        for (JarDelta delta : jarDeltas) {
+            Path localJar = localAppRoot.resolve(delta.getRelativePath());
+            File tempFile = File.createTempFile("jar-delta", ".tmp");
+            String remoteDelta = "/tmp/" + tempFile.getName();
+            String remoteJar = Utils.shellQuote(Utils.linuxPath(remoteAppRoot.resolve(delta.getRelativePath())));
+            try {
+                TreeMap<String, String> entryDigests = JarDelta.getEntryDigests(localJar, algorithm);
+                StringBuilder digestList = new StringBuilder();
+                for (Map.Entry<String, String> entry : entryDigests.entrySet()) {
+                    digestList.append(entry.getValue()).append("  ").append(entry.getKey()).append('\n');
+                }
+                delta.writeArchive(localJar, tempFile.toPath());
+                sshClient.uploadLocalFile(tempFile, remoteDelta);
+                // The digest list comes from standard input; the new JAR is unpacked again and checked before the move
+                StringBuilder command = new StringBuilder()
+                        .append("set -e; T=$(mktemp -d); trap 'rm -rf \"$T\" ").append(remoteJar).append(".new ").append(remoteDelta).append("' EXIT; ")
+                        .append("cat > \"$T/digests\"; mkdir \"$T/old\" \"$T/new\"; cd \"$T/old\"; jar xf ").append(remoteJar).append("; ");
+                if (!delta.getRemovedEntries().isEmpty()) {
+                    command.append("rm -f --");
+                    for (String entry : delta.getRemovedEntries()) {
+                        command.append(' ').append(Utils.shellQuote(entry));
+                    }
+                    command.append("; ");
+                }
+                // The manifest must stay the first entry, so it's packed before the other files
+                command.append("jar xf ").append(remoteDelta).append("; ")
+                        .append("if [ -f META-INF/MANIFEST.MF ]; then ")
+                        .append("jar cfM ").append(remoteJar).append(".new -C \"$T/old\" META-INF/MANIFEST.MF; rm META-INF/MANIFEST.MF; ")
+                        .append("jar uf ").append(remoteJar).append(".new -C \"$T/old\" .; ")
+                        .append("else jar cfM ").append(remoteJar).append(".new -C \"$T/old\" .; fi; ")
+                        .append("cd \"$T/new\"; jar xf ").append(remoteJar).append(".new; ")
+                        .append("test \"$(find . -type f | wc -l)\" -eq ").append(entryDigests.size()).append("; ")
+                        .append(algorithm.getRemoteCommand()).append(" -c --status \"$T/digests\"; ")
+                        .append("mv -f ").append(remoteJar).append(".new ").append(remoteJar);
+                getLog().info("Rebuilding remote JAR " + delta);
+                sshClient.executeCommand(command.toString(), os -> os.write(digestList.toString().getBytes(StandardCharsets.UTF_8)));
+            } catch (IOException e) {
+                getLog().warn("Unable to apply delta to " + remoteJar + ", the file will be uploaded as a whole", e);
+                failedFiles.add(delta.getRelativePath());
+            } finally {
+                tempFile.delete();
+            }
+        }
+        if (failedFiles.size() < jarDeltas.size()) {
+            getLog().info("JAR deltas were applied on the remote machine");
+        }
+        return failedFiles;
+    }
+
+    private void unpackRemoteArchive(
+            @NotNull AbstractSshClient sshClient,
+            @NotNull Path remoteAppRoot,
+            @NotNull String remoteTempArchive
+    ) throws IOException {
+        unpackRemoteArchive(sshClient, remoteAppRoot, remoteTempArchive, true);
+    }
+
+    private void unpackRemoteArchive(
+            @NotNull AbstractSshClient sshClient,
+            @NotNull Path remoteAppRoot,
+            @NotNull String remoteTempArchive,
+            boolean removeArchive
+    ) throws IOException {
+        getLog().info("Unpacking remote archive");
+        sshClient.executeCommand("cd " + Utils.linuxPath(remoteAppRoot) + ";jar xvf " + remoteTempArchive);
+        if (removeArchive) {
+            getLog().info("Temp archive was unpacked. Removing temporary files");
+            sshClient.rm(remoteTempArchive);
+        }
+        getLog().info("Changed file(s) were uploaded to the remote machine");
+    }
+
+    @FunctionalInterface
+    private interface HostTask {
+        void run(@NotNull HostDeployment host) throws Exception;
+    }
+
+    /**
+     * State of the deploy to one host.
+     */
+    private static class HostDeployment {
+        @NotNull
+        private final String hostName;
+        /**
+         * Log which prefixes messages with the host name when several hosts are deployed to
+         */
+        private Log log;
+        private AbstractSshClient sshClient;
+        @Nullable
+        private byte[] remoteChecksumFileBytes;
+        @Nullable
+        private volatile Exception failure;
+        private int copiedFiles;
+        private int removedFiles;
+        /**
+         * Release folders of the application in blue/green mode, {@code null} if the application is updated in place
+         */
+        @Nullable
+        private Releases releases;
+        /**
+         * New release which is built for this deploy
+         */
+        @Nullable
+        private String releaseId;
+        private boolean releaseActivated;
+        /**
+         * Whether the checksum file of the application was replaced with the one of the new release
+         */
+        private boolean checksumsUploaded;
+        /**
+         * Host which relays archives to this one
+         */
+        @Nullable
+        private HostDeployment seed;
+        /**
+         * Archives kept on this seed host for relaying, keyed by their contents; {@code null} if it isn't a seed
+         */
+        @Nullable
+        private Map<Set<Path>, RelayArchive> relayArchives;
+
+        HostDeployment(@NotNull String hostName) {
+            this.hostName = hostName;
+        }
+    }
+
+    private static class RelayArchive {
+        @NotNull
+        private final String remotePath;
+        @NotNull
+        private final String digest;
+
+        RelayArchive(@NotNull String remotePath, @NotNull String digest) {
+            this.remotePath = remotePath;
+            this.digest = digest;
         }
     }
 }
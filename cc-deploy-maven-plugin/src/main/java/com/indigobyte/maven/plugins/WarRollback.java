@@ -0,0 +1,110 @@
+package com.indigobyte.maven.plugins;
+
+import com.indigobyte.deploy.Utils;
+import com.indigobyte.ssh.AbstractSshClient;
+import com.indigobyte.sshj.SshSshjImpl;
+import org.apache.maven.plugin.AbstractMojo;
+import org.apache.maven.plugin.MojoExecutionException;
+import org.apache.maven.plugin.MojoFailureException;
+import org.apache.maven.plugin.logging.Log;
+import org.apache.maven.plugins.annotations.Mojo;
+import org.apache.maven.plugins.annotations.Parameter;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Activates a previous release of an application deployed in blue/green mode. Nothing is uploaded: the application
+ * link is switched to the release and its saved checksum file is restored.
+ */
+@Mojo(name = "rollback-war", threadSafe = true)
+public class WarRollback extends AbstractMojo {
+    @Parameter(property = "deploy.warName", required = true)
+    private String warName;
+
+    @Parameter(property = "deploy.hostName")
+    private String hostName;
+
+    @Parameter(property = "deploy.hostNames")
+    private String[] hostNames;
+
+    @Parameter(property = "deploy.port", required = false, defaultValue = "22")
+    private int port;
+
+    @Parameter(property = "deploy.userName", required = true)
+    private String userName;
+
+    @Parameter(property = "deploy.sshKeyFile", required = true)
+    private String sshKeyFile;
+
+    @Parameter(property = "deploy.remoteWebApps", required = true)
+    private String remoteWebApps;
+
+    @Parameter(defaultValue = "true")
+    private boolean touchWebXml;
+
+    @Parameter(property = "deploy.rollbackTo")
+    private String rollbackTo;
+
+    public void execute() throws MojoExecutionException, MojoFailureException {
+        List<String> hosts = new ArrayList<>();
+        if (hostNames != null) {
+            for (String host : hostNames) {
+                if (host != null && !host.trim().isEmpty() && !hosts.contains(host.trim())) {
+                    hosts.add(host.trim());
+                }
+            }
+        }
+        if (hosts.isEmpty() && hostName != null && !hostName.trim().isEmpty()) {
+            hosts.add(hostName.trim());
+        }
+        if (hosts.isEmpty()) {
+            throw new MojoFailureException("Either deploy.hostName or deploy.hostNames must be specified");
+        }
+        for (String host : hosts) {
+            Log hostLog = hosts.size() > 1 ? new HostLog(getLog(), host) : getLog();
+            try (AbstractSshClient sshClient = new SshSshjImpl(
+                    hostLog,
+                    0,
+                    0,
+                    host,
+                    port,
+                    userName,
+                    sshKeyFile
+            )) {
+                rollback(hostLog, sshClient);
+            } catch (IOException e) {
+                throw new MojoExecutionException("Unable to roll back " + warName + " on " + host, e);
+            }
+        }
+    }
+
+    private void rollback(@NotNull Log log, @NotNull AbstractSshClient sshClient) throws IOException, MojoFailureException {
+        Releases releases = new Releases(log, sshClient, Utils.linuxPath(Paths.get(remoteWebApps)), warName);
+        String liveRelease = releases.getLiveRelease();
+        if (liveRelease == null) {
+            throw new MojoFailureException(releases.getAppRoot() + " is not a link to a release");
+        }
+        List<String> allReleases = releases.list();
+        String target = rollbackTo;
+        if (target == null || target.isEmpty()) {
+            int index = allReleases.indexOf(liveRelease);
+            if (index <= 0) {
+                throw new MojoFailureException("There is no release older than the live one " + liveRelease);
+            }
+            target = allReleases.get(index - 1);
+        } else if (!allReleases.contains(target)) {
+            throw new MojoFailureException("Release " + target + " doesn't exist, available releases: " + allReleases);
+        }
+        log.info("Rolling back from release " + liveRelease + " to " + target);
+        releases.restoreChecksums(target, releases.getAppRoot() + ".checksums");
+        releases.activate(target);
+        if (touchWebXml) {
+            sshClient.executeCommand("touch " + Utils.shellQuote(releases.getAppRoot() + "/WEB-INF/web.xml"));
+            log.info("web.xml was touched");
+        }
+    }
+}
@@ -0,0 +1,39 @@
+package com.indigobyte.maven.plugins;
+
+import org.apache.maven.plugin.logging.SystemStreamLog;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Collections;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertFalse;
+
+public class FolderUpdaterTest {
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    @Test
+    public void reflinkReplacesHardLink() throws IOException {
+        Path sourceFolder = temporaryFolder.newFolder("source").toPath();
+        Path destFolder = temporaryFolder.newFolder("dest").toPath();
+        Path path = Paths.get("a", "b.txt");
+        Path sourceFile = Files.createDirectories(sourceFolder.resolve("a")).resolve("b.txt");
+        Files.write(sourceFile, new byte[]{1, 2, 3});
+
+        new FolderUpdater(new SystemStreamLog(), CopyMode.LINK, 1)
+                .copy(sourceFolder, destFolder, Collections.singletonList(path));
+        new FolderUpdater(new SystemStreamLog(), CopyMode.REFLINK, 1)
+                .copy(sourceFolder, destFolder, Collections.singletonList(path));
+        Files.write(sourceFile, new byte[]{4, 5});
+
+        Path destFile = destFolder.resolve(path);
+        assertFalse(Files.isSameFile(sourceFile, destFile));
+        assertArrayEquals(new byte[]{1, 2, 3}, Files.readAllBytes(destFile));
+    }
+}
@@ -0,0 +1,100 @@
+package com.indigobyte.maven.plugins;
+
+import com.indigobyte.deploy.Checksum;
+import com.indigobyte.deploy.DigestAlgorithm;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.WatchService;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+public class FolderWatcherTest {
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    @Test
+    public void removedFolderNextToSiblingsWithSamePrefix() throws IOException {
+        Path sourceFolder = temporaryFolder.getRoot().toPath();
+        TreeMap<String, Checksum> checksums = checksumsOf(sourceFolder,
+                "img/a.png", "img/b/c.png", "img-old/d.png", "img.png", "img0/e.png", "imgs.txt");
+
+        assertEquals(Arrays.asList("img/a.png", "img/b/c.png"), FolderWatcher.findChecksums(checksums, "img"));
+        assertEquals(6, checksums.size());
+    }
+
+    @Test
+    public void removedFileNextToSiblingsWithSamePrefix() throws IOException {
+        Path sourceFolder = temporaryFolder.getRoot().toPath();
+        TreeMap<String, Checksum> checksums = checksumsOf(sourceFolder, "img", "img-old/d.png", "img.png");
+
+        assertEquals(Collections.singletonList("img"), FolderWatcher.findChecksums(checksums, "img"));
+        assertEquals(Collections.emptyList(), FolderWatcher.findChecksums(checksums, "im"));
+    }
+
+    @Test
+    public void failedCopyIsRetried() throws Exception {
+        Path sourceFolder = temporaryFolder.newFolder("source").toPath();
+        Path destFolder = temporaryFolder.newFolder("dest").toPath();
+        Path file = sourceFolder.resolve("a.txt");
+        Files.write(file, new byte[]{1, 2, 3});
+        // A non-empty folder can't be replaced with the file
+        Path obstacle = Files.createDirectories(destFolder.resolve("a.txt").resolve("b"));
+        FolderWatcher watcher = newWatcher(sourceFolder, destFolder);
+
+        try (WatchService watchService = sourceFolder.getFileSystem().newWatchService()) {
+            try {
+                watcher.applyChanges(watchService, new TreeSet<>(Collections.singleton(file)));
+                fail("Copy must fail");
+            } catch (IOException expected) {
+            }
+            Files.delete(obstacle);
+            Files.delete(obstacle.getParent());
+
+            assertEquals(1, watcher.applyChanges(watchService, new TreeSet<>(Collections.singleton(file))));
+            assertArrayEquals(new byte[]{1, 2, 3}, Files.readAllBytes(destFolder.resolve("a.txt")));
+            assertEquals(0, watcher.applyChanges(watchService, new TreeSet<>(Collections.singleton(file))));
+        }
+    }
+
+    private FolderWatcher newWatcher(Path sourceFolder, Path destFolder) throws ReflectiveOperationException {
+        FolderWatcher watcher = new FolderWatcher();
+        setField(watcher, "sourceFolder", sourceFolder.toString());
+        setField(watcher, "destFolder", destFolder.toString());
+        setField(watcher, "checksumFile", temporaryFolder.getRoot().toPath().resolve("checksums").toString());
+        setField(watcher, "digestAlgorithm", DigestAlgorithm.MD5);
+        setField(watcher, "copyMode", CopyMode.COPY);
+        setField(watcher, "copyThreads", 1);
+        return watcher;
+    }
+
+    private static void setField(FolderSynchronizer synchronizer, String name, Object value) throws ReflectiveOperationException {
+        Field field = FolderSynchronizer.class.getDeclaredField(name);
+        field.setAccessible(true);
+        field.set(synchronizer, value);
+    }
+
+    private static TreeMap<String, Checksum> checksumsOf(Path sourceFolder, String... filePaths) throws IOException {
+        TreeMap<String, Checksum> checksums = new TreeMap<>();
+        for (String filePath : filePaths) {
+            Path file = sourceFolder.resolve(filePath);
+            Files.createDirectories(file.getParent());
+            Files.write(file, filePath.getBytes());
+            Checksum checksum = new Checksum(file, sourceFolder, null, DigestAlgorithm.MD5, new AtomicInteger());
+            checksums.put(checksum.getFilePath(), checksum);
+        }
+        return checksums;
+    }
+}
@@ -1,34 +1,100 @@
 package com.indigobyte.ssh;
 
+import com.indigobyte.deploy.DigestAlgorithm;
+import com.indigobyte.deploy.TarWriter;
 import com.indigobyte.deploy.Utils;
 import org.apache.maven.plugin.logging.Log;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
-import java.io.ByteArrayInputStream;
+import java.io.BufferedWriter;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
-import java.nio.file.Paths;
-import java.util.Arrays;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPOutputStream;
 
 public abstract class AbstractSshClient implements AutoCloseable {
+    /**
+     * Shell command prefix which prints names of chunks listed in a digest list, one per line.
+     */
+    private static final String CHUNK_NAMES_OF_LIST = "sed 's/^[^ ]*  //' ";
+    private static final String ASSEMBLED_MARKER = "CHUNKS_ASSEMBLED";
+    private static final int TRANSFER_BUFFER_SIZE = 64 * 1024;
+
     @NotNull
     protected final Log log;
     private final int chunkSize;
     private final int uploadRetryCount;
+    @NotNull
+    private final DigestAlgorithm verificationAlgorithm;
+    private final int uploadThreads;
 
     protected AbstractSshClient(
             @NotNull Log log,
             int chunkSize,
             int uploadRetryCount
     ) {
+        this(log, chunkSize, uploadRetryCount, DigestAlgorithm.MD5);
+    }
+
+    protected AbstractSshClient(
+            @NotNull Log log,
+            int chunkSize,
+            int uploadRetryCount,
+            @NotNull DigestAlgorithm verificationAlgorithm
+    ) {
+        this(log, chunkSize, uploadRetryCount, verificationAlgorithm, 1);
+    }
+
+    protected AbstractSshClient(
+            @NotNull Log log,
+            int chunkSize,
+            int uploadRetryCount,
+            @NotNull DigestAlgorithm verificationAlgorithm,
+            int uploadThreads
+    ) {
+        if (verificationAlgorithm.getRemoteCommand() == null) {
+            throw new IllegalArgumentException(verificationAlgorithm + " can't be calculated on the remote machine");
+        }
         this.log = log;
         this.chunkSize = chunkSize;
         this.uploadRetryCount = uploadRetryCount;
-        log.info("Chunk size = " + chunkSize + ", upload retry count = " + uploadRetryCount);
+        this.verificationAlgorithm = verificationAlgorithm;
+        this.uploadThreads = Math.max(1, uploadThreads);
+        log.info("Chunk size = " + chunkSize + ", upload retry count = " + uploadRetryCount + ", verification algorithm = " + verificationAlgorithm + ", upload threads = " + this.uploadThreads);
+    }
+
+    /**
+     * @return algorithm which is used to verify uploaded files
+     */
+    @NotNull
+    public DigestAlgorithm getVerificationAlgorithm() {
+        return verificationAlgorithm;
     }
 
     public abstract boolean folderExists(
@@ -52,76 +118,565 @@ public abstract class AbstractSshClient implements AutoCloseable {
             doUploadLocalFile(localFile.toString(), fullRemoteFileName);
             return;
         }
-        Path tempFile = Files.createTempFile("chunk", ".dat");
-        uploadAndVerifyChecksum(tempFile.toString(), fullRemoteFileName);
-        String uuid = System.currentTimeMillis() + Utils.getDigest(new ByteArrayInputStream(tempFile.toAbsolutePath().toString().getBytes(StandardCharsets.UTF_8)));
-        byte[] buffer = new byte[chunkSize];
-        try (FileInputStream fis = new FileInputStream(localFile)) {
-            int chunkNumber = 0;
-            while (true) {
-                int read = fis.read(buffer);
-                if (read == -1) { // End of file reached
+        uploadInChunks(localFile, fullRemoteFileName);
+    }
+
+    /**
+     * Uploads all chunks to remote temporary files first. Then one remote command verifies digests of all chunks and,
+     * if they match, assembles the target file and removes the chunks. Only mismatched chunks are sent again.
+     * <p>
+     * Names of chunks are derived from the digest of the file and the chunk size, and the list of expected digests
+     * stays on the remote machine until the file is assembled. If an upload of the same file is interrupted, the next
+     * run finds the list, verifies the chunks which are already there and uploads only the missing ones.
+     */
+    private void uploadInChunks(
+            @NotNull File localFile,
+            @NotNull String fullRemoteFileName
+    ) throws IOException {
+        long fileSize = localFile.length();
+        int chunkCount = (int) ((fileSize + chunkSize - 1) / chunkSize);
+        if (chunkCount == 0) {
+            openRemoteFileForWriting(fullRemoteFileName).close(); // Creates or truncates the target file
+            return;
+        }
+        try (FileChannel source = FileChannel.open(localFile.toPath(), StandardOpenOption.READ)) {
+            String[] localDigests = new String[chunkCount];
+            String uploadId = calculateChunkDigests(source, fileSize, chunkSize, verificationAlgorithm, localDigests) + "-" + chunkSize;
+            String[] chunkNames = new String[chunkCount];
+            for (int chunkNumber = 0; chunkNumber < chunkCount; ++chunkNumber) {
+                chunkNames[chunkNumber] = "chunk-" + chunkNumber + "_" + uploadId + ".dat";
+            }
+            String chunkListName = "chunks_" + uploadId + ".lst";
+            boolean resuming = regularFileExists("/tmp/" + chunkListName);
+            writeChunkList(chunkNames, localDigests, chunkListName);
+            List<Integer> chunksToUpload;
+            if (resuming) {
+                log.info("Resuming interrupted upload of " + localFile + " to " + fullRemoteFileName);
+                chunksToUpload = verifyAndAssembleChunks(chunkNames, chunkListName, fullRemoteFileName);
+                if (chunksToUpload.isEmpty()) {
+                    log.info("All " + chunkCount + " chunks were already uploaded");
                     return;
                 }
-                if (read != chunkSize) {
-                    buffer = Arrays.copyOf(buffer, read);
+            } else {
+                chunksToUpload = new ArrayList<>(chunkCount);
+                for (int chunkNumber = 0; chunkNumber < chunkCount; ++chunkNumber) {
+                    chunksToUpload.add(chunkNumber);
                 }
-                Files.write(tempFile, buffer);
-                String remoteFileNameForChunk = "/tmp/chunk-" + chunkNumber + "_" + uuid + ".dat";
-                uploadAndVerifyChecksum(tempFile.toString(), remoteFileNameForChunk);
-                executeCommand("cat " + remoteFileNameForChunk + " >> " + fullRemoteFileName);
-                rm(remoteFileNameForChunk);
-                ++chunkNumber;
+            }
+            log.info("Uploading file " + localFile + " to " + fullRemoteFileName + ": " + chunksToUpload.size() + " of " + chunkCount + " chunks");
+            for (int attempt = 0; ; ++attempt) {
+                uploadChunks(source, fileSize, chunksToUpload, chunkNames, localDigests);
+                chunksToUpload = verifyAndAssembleChunks(chunkNames, chunkListName, fullRemoteFileName);
+                if (chunksToUpload.isEmpty()) {
+                    return;
+                }
+                if (attempt + 1 >= uploadRetryCount) {
+                    // Verified chunks are kept, so the next run can resume the upload
+                    IOException e = new IOException("Checksum mismatch of " + chunksToUpload.size() + " chunks of " + fullRemoteFileName);
+                    log.error("Max attempts to copy chunks reached", e);
+                    throw e;
+                }
+                log.warn("Checksum mismatch of chunks " + chunksToUpload + ", sending them again");
             }
         }
     }
 
-    private void uploadAndVerifyChecksum(
-            @NotNull String localFile,
+    /**
+     * Reads the file once, calculating digests of every chunk and of the whole file. The file and every chunk have
+     * their own sinks, as both are updated with the same bytes at once.
+     *
+     * @return digest of the whole file
+     */
+    @NotNull
+    static String calculateChunkDigests(
+            @NotNull FileChannel source,
+            long fileSize,
+            int chunkSize,
+            @NotNull DigestAlgorithm algorithm,
+            @NotNull String[] chunkDigests
+    ) throws IOException {
+        DigestAlgorithm.Sink fileSink = algorithm.newSink();
+        ByteBuffer buffer = ByteBuffer.allocate(TRANSFER_BUFFER_SIZE);
+        for (int chunkNumber = 0; chunkNumber < chunkDigests.length; ++chunkNumber) {
+            DigestAlgorithm.Sink chunkSink = algorithm.newSink();
+            long position = (long) chunkNumber * chunkSize;
+            long end = Math.min(position + chunkSize, fileSize);
+            while (position < end) {
+                int read = readRegion(source, position, end, buffer);
+                chunkSink.update(buffer.array(), 0, read);
+                fileSink.update(buffer.array(), 0, read);
+                position += read;
+            }
+            chunkDigests[chunkNumber] = Utils.getHex(chunkSink.finish());
+        }
+        return Utils.getHex(fileSink.finish());
+    }
+
+    /**
+     * Reads the next part of region ending at {@code end} into the beginning of the buffer.
+     *
+     * @return number of bytes read
+     */
+    private static int readRegion(@NotNull FileChannel source, long position, long end, @NotNull ByteBuffer buffer) throws IOException {
+        ((Buffer) buffer).clear();
+        if (end - position < buffer.capacity()) {
+            ((Buffer) buffer).limit((int) (end - position));
+        }
+        int read = source.read(buffer, position);
+        if (read == -1) {
+            throw new IOException("Source file was truncated while it was being uploaded");
+        }
+        return read;
+    }
+
+    /**
+     * Uploads chunks to remote temporary files. If there are several upload threads, every thread uses its own channel.
+     */
+    private void uploadChunks(
+            @NotNull FileChannel source,
+            long fileSize,
+            @NotNull List<Integer> chunkNumbers,
+            @NotNull String[] chunkNames,
+            @NotNull String[] localDigests
+    ) throws IOException {
+        int threadCount = Math.min(uploadThreads, chunkNumbers.size());
+        if (threadCount <= 1) {
+            ByteBuffer buffer = ByteBuffer.allocate(TRANSFER_BUFFER_SIZE);
+            for (int chunkNumber : chunkNumbers) {
+                long offset = (long) chunkNumber * chunkSize;
+                uploadChunk(
+                        source,
+                        offset,
+                        Math.min(chunkSize, fileSize - offset),
+                        localDigests[chunkNumber],
+                        buffer,
+                        "/tmp/" + chunkNames[chunkNumber],
+                        this::openRemoteFileForWriting,
+                        this::close
+                );
+            }
+            return;
+        }
+        log.info("Uploading " + chunkNumbers.size() + " chunks over " + threadCount + " channels");
+        AtomicInteger nextChunk = new AtomicInteger();
+        ExecutorService executor = Executors.newFixedThreadPool(threadCount);
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (int i = 0; i < threadCount; ++i) {
+                futures.add(executor.submit(() -> {
+                    ByteBuffer buffer = ByteBuffer.allocate(TRANSFER_BUFFER_SIZE);
+                    UploadChannel[] channel = {openUploadChannel()};
+                    try {
+                        int index;
+                        while ((index = nextChunk.getAndIncrement()) < chunkNumbers.size()) {
+                            int chunkNumber = chunkNumbers.get(index);
+                            long offset = (long) chunkNumber * chunkSize;
+                            uploadChunk(
+                                    source,
+                                    offset,
+                                    Math.min(chunkSize, fileSize - offset),
+                                    localDigests[chunkNumber],
+                                    buffer,
+                                    "/tmp/" + chunkNames[chunkNumber],
+                                    remote -> channel[0].openForWriting(remote),
+                                    () -> {
+                                        channel[0].close();
+                                        channel[0] = openUploadChannel();
+                                    }
+                            );
+                        }
+                    } finally {
+                        channel[0].close();
+                    }
+                    return null;
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Parallel upload of chunks was interrupted");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            throw cause instanceof IOException ? (IOException) cause : new IOException(cause);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Writes the list of expected chunk digests next to the chunks. The list serves as the journal of the upload: it's
+     * removed only after the target file is assembled.
+     */
+    private void writeChunkList(
+            @NotNull String[] chunkNames,
+            @NotNull String[] localDigests,
+            @NotNull String chunkListName
+    ) throws IOException {
+        try (Writer writer = new BufferedWriter(new OutputStreamWriter(openRemoteFileForWriting("/tmp/" + chunkListName), StandardCharsets.UTF_8))) {
+            for (int chunkNumber = 0; chunkNumber < chunkNames.length; ++chunkNumber) {
+                writer.write(localDigests[chunkNumber] + "  " + chunkNames[chunkNumber] + "\n");
+            }
+        }
+    }
+
+    /**
+     * Runs a single remote command which checks digests of all chunks in the list and, if every chunk matches,
+     * concatenates the chunks in order into the target file and removes them together with the list.
+     *
+     * @return numbers of chunks which are missing or whose digests don't match
+     */
+    @NotNull
+    private List<Integer> verifyAndAssembleChunks(
+            @NotNull String[] chunkNames,
+            @NotNull String chunkListName,
             @NotNull String fullRemoteFileName
     ) throws IOException {
-        String localFileDigest = Utils.getDigest(Paths.get(localFile));
+        Map<String, Integer> chunkNumbers = new HashMap<>();
+        for (int chunkNumber = 0; chunkNumber < chunkNames.length; ++chunkNumber) {
+            chunkNumbers.put(chunkNames[chunkNumber], chunkNumber);
+        }
+        String output = executeCommand("cd /tmp && if " + verificationAlgorithm.getRemoteCommand() + " -c --quiet " + chunkListName + " 2>/dev/null; then " +
+                CHUNK_NAMES_OF_LIST + chunkListName + " | xargs cat > " + Utils.shellQuote(fullRemoteFileName) + " && " +
+                CHUNK_NAMES_OF_LIST + chunkListName + " | xargs rm -f && rm -f " + chunkListName + " && echo " + ASSEMBLED_MARKER + "; fi");
+        if (output.contains(ASSEMBLED_MARKER)) {
+            return Collections.emptyList();
+        }
+        // Mismatched and missing chunks are reported as "<name>: FAILED" and "<name>: FAILED open or read"
+        List<Integer> failedChunks = new ArrayList<>();
+        for (String line : output.split("\n")) {
+            int separator = line.lastIndexOf(": FAILED");
+            Integer chunkNumber = separator >= 0 ? chunkNumbers.get(line.substring(0, separator)) : null;
+            if (chunkNumber != null) {
+                failedChunks.add(chunkNumber);
+            }
+        }
+        if (failedChunks.isEmpty()) {
+            removeChunks(chunkListName);
+            throw new IOException("Unable to assemble " + fullRemoteFileName + " from chunks. Output: " + output);
+        }
+        return failedChunks;
+    }
+
+    private void removeChunks(@NotNull String chunkListName) {
+        try {
+            executeCommand("cd /tmp && " + CHUNK_NAMES_OF_LIST + chunkListName + " | xargs rm -f; rm -f " + chunkListName);
+        } catch (IOException e) {
+            log.warn("Unable to remove uploaded chunks listed in /tmp/" + chunkListName, e);
+        }
+    }
+
+    /**
+     * Streams a region of the source file to the remote file, checking on the fly that it still has the expected
+     * digest.
+     *
+     * @param buffer      heap buffer reused between chunks
+     * @param reconnector called after a failed attempt to reinitialize the connection
+     */
+    private void uploadChunk(
+            @NotNull FileChannel source,
+            long offset,
+            long length,
+            @NotNull String expectedDigest,
+            @NotNull ByteBuffer buffer,
+            @NotNull String fullRemoteFileName,
+            @NotNull RemoteFileOpener opener,
+            @NotNull Reconnector reconnector
+    ) throws IOException {
         IOException latestException = null;
         for (int attempt = 0; attempt < uploadRetryCount; ++attempt) {
+            String uploadedDigest;
             try {
-                doUploadLocalFile(localFile, fullRemoteFileName);
-                String remoteDigest = executeCommand("md5sum " + fullRemoteFileName);
-                remoteDigest = remoteDigest.substring(0, remoteDigest.indexOf(' '));
-                if (remoteDigest.equals(localFileDigest)) {
-                    return; // uploaded contents matches
-                } else {
-                    latestException = new IOException("Checksum mismatch." +
-                            "\nLocal checksum: " + localFileDigest +
-                            "\nRemote checksum: " + remoteDigest
-                    );
+                DigestAlgorithm.Sink sink = verificationAlgorithm.newSink();
+                try (OutputStream out = opener.open(fullRemoteFileName)) {
+                    long position = offset;
+                    long end = offset + length;
+                    while (position < end) {
+                        int read = readRegion(source, position, end, buffer);
+                        sink.update(buffer.array(), 0, read);
+                        out.write(buffer.array(), 0, read);
+                        position += read;
+                    }
                 }
+                uploadedDigest = Utils.getHex(sink.finish());
             } catch (Throwable e) {
-                log.error("Attempt #" + attempt + " to copy chunk " + localFile + " to " + fullRemoteFileName + " failed", e);
+                log.error("Attempt #" + attempt + " to copy chunk at offset " + offset + " to " + fullRemoteFileName + " failed", e);
                 if (e instanceof IOException) {
                     latestException = (IOException) e;
                 } else {
                     latestException = new IOException(e);
                 }
                 try {
-                    close(); // To reinitialize the connection
+                    reconnector.reconnect();
                 } catch (Throwable closingException) {
                     log.error("An exception was thrown when connection was being closed", e);
                 }
+                continue;
+            }
+            if (!uploadedDigest.equals(expectedDigest)) {
+                throw new IOException("Source file was modified while chunk " + fullRemoteFileName + " was being uploaded");
             }
+            return;
         }
-        if (latestException != null) {
-            log.error("Max attempts to copy chunk reached", latestException);
+        log.error("Max attempts to copy chunk reached", latestException);
+        throw latestException;
+    }
+
+    @NotNull
+    public String getRemoteDigest(@NotNull String fullRemoteFileName) throws IOException {
+        String remoteDigest = executeCommand(verificationAlgorithm.getRemoteCommand() + " " + fullRemoteFileName);
+        return remoteDigest.substring(0, remoteDigest.indexOf(' '));
+    }
+
+    /**
+     * Streams files into {@code tar} running on the remote machine, so neither side writes a temporary archive. Then
+     * digests of the unpacked files are checked on the remote machine, and files which don't match are streamed
+     * again, up to the upload retry count.
+     *
+     * @param files     paths of files and folders relative to {@code localRoot}
+     * @param gzipLevel deflate level of the gzip compressed stream, {@code 0} to send plain tar
+     */
+    public final void uploadFilesAsTar(
+            @NotNull Collection<Path> files,
+            @NotNull Path localRoot,
+            @NotNull String remoteRoot,
+            int gzipLevel
+    ) throws IOException {
+        int maxAttempts = Math.max(1, uploadRetryCount);
+        String tarCommand = "mkdir -p " + Utils.shellQuote(remoteRoot) +
+                " && tar -x" + (gzipLevel > 0 ? "z" : "") + "mf - -C " + Utils.shellQuote(remoteRoot);
+        List<Path> pendingFiles = new ArrayList<>(files);
+        IOException latestException = null;
+        for (int attempt = 1; attempt <= maxAttempts && !pendingFiles.isEmpty(); ++attempt) {
+            log.info("Streaming " + pendingFiles.size() + " file(s) to " + remoteRoot + ", attempt " + attempt + " of " + maxAttempts);
+            Map<String, Path> filesByName = new LinkedHashMap<>();
+            Map<String, String> localDigests = new HashMap<>();
+            List<Path> streamedFiles = pendingFiles;
+            try {
+                executeCommand(tarCommand, os -> {
+                    GZIPOutputStream gzip = gzipLevel > 0 ? new GZIPOutputStream(os, TRANSFER_BUFFER_SIZE) {
+                        {
+                            def.setLevel(gzipLevel);
+                        }
+                    } : null;
+                    TarWriter tarWriter = new TarWriter(gzip != null ? gzip : os);
+                    for (Path path : streamedFiles) {
+                        Path file = localRoot.resolve(path);
+                        String name = Utils.linuxPath(path);
+                        if (Files.isDirectory(file)) {
+                            tarWriter.add(file, name, null);
+                            continue;
+                        }
+                        DigestAlgorithm.Sink sink = verificationAlgorithm.newSink();
+                        tarWriter.add(file, name, sink);
+                        filesByName.put(name, path);
+                        localDigests.put(name, Utils.getHex(sink.finish()));
+                    }
+                    tarWriter.finish();
+                    if (gzip != null) {
+                        gzip.finish();
+                    }
+                });
+            } catch (IOException e) {
+                log.warn("Streaming of files failed", e);
+                latestException = e;
+                continue;
+            }
+            Map<String, String> remoteDigests = getRemoteDigests(remoteRoot, filesByName.keySet());
+            pendingFiles = new ArrayList<>();
+            for (Map.Entry<String, Path> entry : filesByName.entrySet()) {
+                if (!localDigests.get(entry.getKey()).equals(remoteDigests.get(entry.getKey()))) {
+                    pendingFiles.add(entry.getValue());
+                }
+            }
+            if (!pendingFiles.isEmpty()) {
+                log.warn(pendingFiles.size() + " streamed file(s) don't match local ones, first of them: " + pendingFiles.get(0));
+                latestException = new IOException("Checksum mismatch of " + pendingFiles.size() + " streamed file(s), first of them: " + pendingFiles.get(0));
+            }
+        }
+        if (!pendingFiles.isEmpty()) {
+            log.error("Max attempts to stream files reached", latestException);
             throw latestException;
         }
     }
 
+    @NotNull
+    private Map<String, String> getRemoteDigests(@NotNull String remoteRoot, @NotNull Collection<String> names) throws IOException {
+        return getRemoteDigests(remoteRoot, names, verificationAlgorithm);
+    }
+
+    /**
+     * Calculates digests of remote files with one command. Files are hashed by several processes at once, one per
+     * processor of the remote machine. Every process gets a few files only, so its output is written to the shared
+     * pipe at once and doesn't interleave with others; a damaged line just makes the file look changed.
+     *
+     * @param names     paths relative to {@code remoteRoot}
+     * @param algorithm algorithm which can be calculated on the remote machine
+     * @return digests of existing remote files by their names
+     */
+    @NotNull
+    public Map<String, String> getRemoteDigests(
+            @NotNull String remoteRoot,
+            @NotNull Collection<String> names,
+            @NotNull DigestAlgorithm algorithm
+    ) throws IOException {
+        if (algorithm.getRemoteCommand() == null) {
+            throw new IllegalArgumentException(algorithm + " can't be calculated on the remote machine");
+        }
+        if (names.isEmpty()) {
+            return Collections.emptyMap();
+        }
+        String output = executeCommand(
+                "cd " + Utils.shellQuote(remoteRoot) + " && xargs -0 -n 16 -P \"$(nproc 2>/dev/null || echo 2)\" " +
+                        algorithm.getRemoteCommand() + " -- 2>/dev/null; true",
+                os -> {
+                    for (String name : names) {
+                        os.write(name.getBytes(StandardCharsets.UTF_8));
+                        os.write(0);
+                    }
+                }
+        );
+        Map<String, String> result = new HashMap<>();
+        for (String line : output.split("\n")) {
+            int separator = line.indexOf("  ");
+            if (separator < 0) {
+                continue;
+            }
+            // Names with backslashes or new lines are escaped and the line starts with a backslash
+            boolean escaped = line.startsWith("\\");
+            String name = line.substring(separator + 2);
+            if (escaped) {
+                name = unescapeDigestName(name);
+            }
+            result.put(name, line.substring(escaped ? 1 : 0, separator));
+        }
+        return result;
+    }
+
+    /**
+     * Removes files and folders with a single remote command. Folders which still contain other files are kept.
+     *
+     * @param paths paths relative to {@code remoteRoot}
+     * @throws IOException if some of the files couldn't be removed
+     */
+    public final void removeRemotePaths(@NotNull String remoteRoot, @NotNull Collection<String> paths) throws IOException {
+        removeRemotePaths(remoteRoot, paths, null);
+    }
+
+    /**
+     * Removes files and folders with a single remote command. Paths are sent as a null-delimited list together with
+     * their parent folders which aren't kept, children before their parents, so folders emptied by the removal are
+     * pruned in the same step. Folders which still contain other files are kept.
+     *
+     * @param paths       paths relative to {@code remoteRoot}
+     * @param keptFolders folders relative to {@code remoteRoot} which must stay even if they become empty, {@code null}
+     *                    to prune no parent folders
+     * @throws IOException if some of the files couldn't be removed
+     */
+    public final void removeRemotePaths(
+            @NotNull String remoteRoot,
+            @NotNull Collection<String> paths,
+            @Nullable Set<String> keptFolders
+    ) throws IOException {
+        if (paths.isEmpty()) {
+            return;
+        }
+        Set<String> requestedPaths = new HashSet<>(paths);
+        // A child always sorts after its parent, so the reverse order removes children first
+        TreeSet<String> sortedPaths = new TreeSet<>(Collections.reverseOrder());
+        for (String path : paths) {
+            if (keptFolders != null) {
+                for (int i = path.lastIndexOf('/'); i > 0; i = path.lastIndexOf('/', i - 1)) {
+                    String parent = path.substring(0, i);
+                    if (keptFolders.contains(parent)) {
+                        // Its parents are kept as well
+                        break;
+                    }
+                    sortedPaths.add(parent);
+                }
+            }
+            sortedPaths.add(path);
+        }
+        String output = executeCommand(
+                "cd " + Utils.shellQuote(remoteRoot) + " && xargs -0 sh -c '" +
+                        "rm -f -- \"$@\" 2>/dev/null; rmdir -- \"$@\" 2>/dev/null; " +
+                        "for p; do if [ -d \"$p\" ]; then printf \"d %s\\n\" \"$p\"; elif [ -e \"$p\" ] || [ -h \"$p\" ]; then printf \"f %s\\n\" \"$p\"; fi; done" +
+                        "' sh",
+                os -> {
+                    for (String path : sortedPaths) {
+                        os.write(path.getBytes(StandardCharsets.UTF_8));
+                        os.write(0);
+                    }
+                }
+        );
+        List<String> remainingFiles = new ArrayList<>();
+        for (String line : output.split("\n")) {
+            if (line.startsWith("d ") && requestedPaths.contains(line.substring(2))) {
+                log.warn("Folder " + line.substring(2) + " wasn't removed because it contains other files");
+            } else if (line.startsWith("f ")) {
+                remainingFiles.add(line.substring(2));
+            }
+        }
+        if (!remainingFiles.isEmpty()) {
+            throw new IOException("Unable to remove " + remainingFiles.size() + " file(s) from " + remoteRoot + ", first of them: " + remainingFiles.get(0));
+        }
+    }
+
+    @NotNull
+    private static String unescapeDigestName(@NotNull String name) {
+        StringBuilder sb = new StringBuilder(name.length());
+        for (int i = 0; i < name.length(); ++i) {
+            char c = name.charAt(i);
+            if (c == '\\' && i + 1 < name.length()) {
+                c = name.charAt(++i) == 'n' ? '\n' : name.charAt(i);
+            }
+            sb.append(c);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Opens remote file for writing, truncating it if it already exists. Written data is sent to the remote side
+     * while the caller is still producing it.
+     */
+    @NotNull
+    public abstract OutputStream openRemoteFileForWriting(@NotNull String fullRemoteFileName) throws IOException;
+
     protected abstract void doUploadLocalFile(
             @NotNull String localFile,
             @NotNull String fullRemoteFileName
     ) throws IOException;
 
+    /**
+     * Opens a channel which uploads files independently of other channels, so several chunks can be transferred at
+     * once. The default implementation shares the connection used by {@link #openRemoteFileForWriting(String)}.
+     */
+    @NotNull
+    protected UploadChannel openUploadChannel() throws IOException {
+        return new UploadChannel() {
+            @NotNull
+            @Override
+            public OutputStream openForWriting(@NotNull String fullRemoteFileName) throws IOException {
+                return openRemoteFileForWriting(fullRemoteFileName);
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+    }
+
     public abstract String executeCommand(@NotNull String command) throws IOException;
 
+    /**
+     * Executes the command, passing the data written by {@code input} to its standard input.
+     *
+     * @return standard output of the command
+     */
+    @NotNull
+    public abstract String executeCommand(@NotNull String command, @NotNull CommandInput input) throws IOException;
+
     public abstract void mkdir(@NotNull String fullRemotePath) throws IOException;
 
     public abstract void downloadRemoteFile(
@@ -135,4 +690,34 @@ public abstract class AbstractSshClient implements AutoCloseable {
 
     @Override
     public abstract void close() throws IOException;
+
+    @FunctionalInterface
+    private interface RemoteFileOpener {
+        @NotNull
+        OutputStream open(@NotNull String fullRemoteFileName) throws IOException;
+    }
+
+    @FunctionalInterface
+    private interface Reconnector {
+        void reconnect() throws IOException;
+    }
+
+    @FunctionalInterface
+    public interface CommandInput {
+        /**
+         * Writes standard input of a remote command. The stream is closed by the caller.
+         */
+        void write(@NotNull OutputStream os) throws IOException;
+    }
+
+    protected interface UploadChannel extends AutoCloseable {
+        /**
+         * @see #openRemoteFileForWriting(String)
+         */
+        @NotNull
+        OutputStream openForWriting(@NotNull String fullRemoteFileName) throws IOException;
+
+        @Override
+        void close() throws IOException;
+    }
 }
@@ -0,0 +1,90 @@
+package com.indigobyte.ssh;
+
+import com.indigobyte.deploy.DigestAlgorithm;
+import com.indigobyte.deploy.Utils;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class AbstractSshClientTest {
+    private static final int CHUNK_SIZE = 100_000;
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    @Test
+    public void chunkDigestsMatchDigestsOfFileParts() throws IOException {
+        for (DigestAlgorithm algorithm : new DigestAlgorithm[]{DigestAlgorithm.MD5, DigestAlgorithm.SHA256}) {
+            byte[] content = new byte[3 * CHUNK_SIZE + 12_345];
+            new Random(42).nextBytes(content);
+            Path file = temporaryFolder.newFile().toPath();
+            Files.write(file, content);
+
+            String[] chunkDigests = new String[4];
+            String fileDigest;
+            try (FileChannel source = FileChannel.open(file, StandardOpenOption.READ)) {
+                fileDigest = AbstractSshClient.calculateChunkDigests(source, content.length, CHUNK_SIZE, algorithm, chunkDigests);
+            }
+
+            assertEquals(Utils.getDigest(file, algorithm), fileDigest);
+            for (int chunkNumber = 0; chunkNumber < chunkDigests.length; ++chunkNumber) {
+                Path chunk = temporaryFolder.newFile().toPath();
+                int from = chunkNumber * CHUNK_SIZE;
+                Files.write(chunk, Arrays.copyOfRange(content, from, Math.min(from + CHUNK_SIZE, content.length)));
+                assertEquals("Chunk " + chunkNumber + " of " + algorithm, Utils.getDigest(chunk, algorithm), chunkDigests[chunkNumber]);
+            }
+        }
+    }
+
+    @Test
+    public void emptiedFoldersArePrunedUnlessKept() throws IOException {
+        Path root = temporaryFolder.newFolder().toPath();
+        Files.createDirectories(root.resolve("a/b/c"));
+        Files.createDirectories(root.resolve("resources/empty"));
+        Files.createDirectories(root.resolve("shared"));
+        Files.write(root.resolve("a/b/c/removed.txt"), new byte[1]);
+        Files.write(root.resolve("resources/empty/removed.txt"), new byte[1]);
+        Files.write(root.resolve("shared/removed.txt"), new byte[1]);
+        Files.write(root.resolve("shared/kept.txt"), new byte[1]);
+
+        try (LocalShellClient client = new LocalShellClient()) {
+            client.removeRemotePaths(root.toString(),
+                    Arrays.asList("a/b/c/removed.txt", "resources/empty/removed.txt", "shared/removed.txt"),
+                    new HashSet<>(Arrays.asList("resources", "resources/empty")));
+        }
+
+        assertFalse(Files.exists(root.resolve("a")));
+        assertTrue(Files.isDirectory(root.resolve("resources/empty")));
+        assertFalse(Files.exists(root.resolve("resources/empty/removed.txt")));
+        assertTrue(Files.exists(root.resolve("shared/kept.txt")));
+        assertFalse(Files.exists(root.resolve("shared/removed.txt")));
+    }
+
+    @Test
+    public void parentFoldersAreKeptWithoutKeptFolders() throws IOException {
+        Path root = temporaryFolder.newFolder().toPath();
+        Files.createDirectories(root.resolve("a/b"));
+        Files.write(root.resolve("a/b/removed.txt"), new byte[1]);
+
+        try (LocalShellClient client = new LocalShellClient()) {
+            client.removeRemotePaths(root.toString(), Collections.singletonList("a/b/removed.txt"));
+        }
+
+        assertTrue(Files.isDirectory(root.resolve("a/b")));
+        assertFalse(Files.exists(root.resolve("a/b/removed.txt")));
+    }
+}
@@ -0,0 +1,114 @@
+package com.indigobyte.ssh;
+
+import com.indigobyte.deploy.DigestAlgorithm;
+import org.apache.maven.plugin.logging.SystemStreamLog;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * Runs "remote" commands with the local shell, so the commands built by {@link AbstractSshClient} can be tested.
+ */
+class LocalShellClient extends AbstractSshClient {
+    LocalShellClient() {
+        super(new SystemStreamLog(), 0, 0, DigestAlgorithm.MD5);
+    }
+
+    @Override
+    public boolean folderExists(@NotNull String remoteDest) {
+        return Files.isDirectory(Paths.get(remoteDest), LinkOption.NOFOLLOW_LINKS);
+    }
+
+    @Override
+    public boolean regularFileExists(@NotNull String remoteDest) {
+        return Files.isRegularFile(Paths.get(remoteDest), LinkOption.NOFOLLOW_LINKS);
+    }
+
+    @Override
+    public boolean symbolicLinkExists(@NotNull String remoteDest) {
+        return Files.isSymbolicLink(Paths.get(remoteDest));
+    }
+
+    @NotNull
+    @Override
+    public OutputStream openRemoteFileForWriting(@NotNull String fullRemoteFileName) throws IOException {
+        return Files.newOutputStream(Paths.get(fullRemoteFileName));
+    }
+
+    @Override
+    protected void doUploadLocalFile(@NotNull String localFile, @NotNull String fullRemoteFileName) throws IOException {
+        Files.copy(Paths.get(localFile), Paths.get(fullRemoteFileName), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    @Override
+    public String executeCommand(@NotNull String command) throws IOException {
+        return executeCommand(command, os -> {
+        });
+    }
+
+    @NotNull
+    @Override
+    public String executeCommand(@NotNull String command, @NotNull CommandInput input) throws IOException {
+        Process process = new ProcessBuilder("sh", "-c", command)
+                .redirectError(ProcessBuilder.Redirect.INHERIT)
+                .start();
+        try (OutputStream os = process.getOutputStream()) {
+            input.write(os);
+        }
+        String output = readAll(process.getInputStream());
+        try {
+            int exitStatus = process.waitFor();
+            if (exitStatus != 0) {
+                throw new IOException("Unable to execute command. Exit status: " + exitStatus);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        }
+        return output;
+    }
+
+    @Override
+    public void mkdir(@NotNull String fullRemotePath) throws IOException {
+        Files.createDirectories(Paths.get(fullRemotePath));
+    }
+
+    @Override
+    public void downloadRemoteFile(@NotNull String fullRemotePath, @NotNull String fullLocalPath) throws IOException {
+        Files.copy(Paths.get(fullRemotePath), Paths.get(fullLocalPath), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    @Override
+    public void rm(@NotNull String fullRemotePath) throws IOException {
+        Files.deleteIfExists(Paths.get(fullRemotePath));
+    }
+
+    @Override
+    public boolean isEmptyFolder(@NotNull String fullRemotePath) throws IOException {
+        return !Files.list(Paths.get(fullRemotePath)).findAny().isPresent();
+    }
+
+    @Override
+    public void close() {
+    }
+
+    @NotNull
+    private static String readAll(@NotNull InputStream is) throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        int read;
+        while ((read = is.read(buffer)) != -1) {
+            baos.write(buffer, 0, read);
+        }
+        return new String(baos.toByteArray(), StandardCharsets.UTF_8);
+    }
+}
@@ -1,5 +1,6 @@
 package com.indigobyte.sshj;
 
+import com.indigobyte.deploy.DigestAlgorithm;
 import com.indigobyte.ssh.AbstractSshClient;
 import net.schmizz.sshj.common.IOUtils;
 import net.schmizz.sshj.connection.channel.direct.Session;
@@ -8,12 +9,20 @@ import org.apache.maven.plugin.logging.Log;
 import org.jetbrains.annotations.NotNull;
 
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
 import java.nio.charset.StandardCharsets;
+import java.util.EnumSet;
 import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
 import java.util.concurrent.TimeUnit;
 import java.util.function.Predicate;
 
 public class SshSshjImpl extends AbstractSshClient {
+    private static final int MAX_UNCONFIRMED_WRITES = 16;
+
     @NotNull
     private final SshjResource ssh;
 
@@ -26,8 +35,54 @@ public class SshSshjImpl extends AbstractSshClient {
             @NotNull String userName,
             @NotNull String sshKeyFile
     ) throws IOException {
-        super(log, chunkSize, uploadRetryCount);
-        this.ssh = new SshjResource(log, hostName, port, userName, sshKeyFile);
+        this(log, chunkSize, uploadRetryCount, DigestAlgorithm.MD5, hostName, port, userName, sshKeyFile);
+    }
+
+    public SshSshjImpl(
+            @NotNull Log log,
+            int chunkSize,
+            int uploadRetryCount,
+            @NotNull DigestAlgorithm verificationAlgorithm,
+            @NotNull String hostName,
+            int port,
+            @NotNull String userName,
+            @NotNull String sshKeyFile
+    ) throws IOException {
+        this(log, chunkSize, uploadRetryCount, verificationAlgorithm, 1, hostName, port, userName, sshKeyFile);
+    }
+
+    public SshSshjImpl(
+            @NotNull Log log,
+            int chunkSize,
+            int uploadRetryCount,
+            @NotNull DigestAlgorithm verificationAlgorithm,
+            int uploadThreads,
+            @NotNull String hostName,
+            int port,
+            @NotNull String userName,
+            @NotNull String sshKeyFile
+    ) throws IOException {
+        this(log, chunkSize, uploadRetryCount, verificationAlgorithm, uploadThreads, false, hostName, port, userName, sshKeyFile);
+    }
+
+    /**
+     * @param reuseConnection whether the connection must be shared with other clients of the same host, port, user
+     *                        and key file during the build instead of being closed with this client
+     */
+    public SshSshjImpl(
+            @NotNull Log log,
+            int chunkSize,
+            int uploadRetryCount,
+            @NotNull DigestAlgorithm verificationAlgorithm,
+            int uploadThreads,
+            boolean reuseConnection,
+            @NotNull String hostName,
+            int port,
+            @NotNull String userName,
+            @NotNull String sshKeyFile
+    ) throws IOException {
+        super(log, chunkSize, uploadRetryCount, verificationAlgorithm, uploadThreads);
+        this.ssh = new SshjResource(log, hostName, port, userName, sshKeyFile, reuseConnection);
         ssh.getSshClient();
     }
 
@@ -80,6 +135,50 @@ public class SshSshjImpl extends AbstractSshClient {
         ssh.getSftpClient().put(localFile, fullRemoteFileName);
     }
 
+    /**
+     * Opens a separate SFTP channel on the same connection. Every channel has its own flow control window, so
+     * parallel channels aren't limited by the window size of a single one on high-latency links.
+     */
+    @NotNull
+    @Override
+    protected UploadChannel openUploadChannel() throws IOException {
+        SFTPClient sftpClient = ssh.getSshClient().newSFTPClient();
+        return new UploadChannel() {
+            @NotNull
+            @Override
+            public OutputStream openForWriting(@NotNull String fullRemoteFileName) throws IOException {
+                return openRemoteFile(sftpClient, fullRemoteFileName);
+            }
+
+            @Override
+            public void close() throws IOException {
+                sftpClient.close();
+            }
+        };
+    }
+
+    @NotNull
+    @Override
+    public OutputStream openRemoteFileForWriting(@NotNull String fullRemoteFileName) throws IOException {
+        log.info("Opening remote file " + fullRemoteFileName + " for streaming upload");
+        return openRemoteFile(ssh.getSftpClient(), fullRemoteFileName);
+    }
+
+    @NotNull
+    private static OutputStream openRemoteFile(@NotNull SFTPClient sftpClient, @NotNull String fullRemoteFileName) throws IOException {
+        RemoteFile remoteFile = sftpClient.open(fullRemoteFileName, EnumSet.of(OpenMode.WRITE, OpenMode.CREAT, OpenMode.TRUNC));
+        return remoteFile.new RemoteFileOutputStream(0, MAX_UNCONFIRMED_WRITES) {
+            @Override
+            public void close() throws IOException {
+                try {
+                    super.close();
+                } finally {
+                    remoteFile.close();
+                }
+            }
+        };
+    }
+
     @Override
     public String executeCommand(@NotNull String command) throws IOException {
         try (Session session = ssh.getSshClient().startSession()) {
@@ -95,6 +194,50 @@ public class SshSshjImpl extends AbstractSshClient {
         }
     }
 
+    @NotNull
+    @Override
+    public String executeCommand(@NotNull String command, @NotNull CommandInput input) throws IOException {
+        try (Session session = ssh.getSshClient().startSession()) {
+            Session.Command cmd = session.exec(command);
+            // Both outputs are read while input is written, otherwise the command may block on a full channel window
+            FutureTask<byte[]> output = startReading(cmd.getInputStream(), "ssh-command-output");
+            FutureTask<byte[]> errorOutput = startReading(cmd.getErrorStream(), "ssh-command-error-output");
+            try (OutputStream os = cmd.getOutputStream()) {
+                input.write(os);
+            }
+            String commandOutput = getOutput(command, output);
+            String commandErrorOutput = getOutput(command, errorOutput);
+            cmd.join(15, TimeUnit.SECONDS);
+            Integer exitStatus = cmd.getExitStatus();
+            if (exitStatus == null || exitStatus != 0) {
+                throw new IOException("Unable to execute command. Exit status: " + exitStatus + ", error output: " + commandErrorOutput);
+            }
+            log.debug("output of a command " + command + ": " + commandOutput);
+            return commandOutput;
+        }
+    }
+
+    @NotNull
+    private static FutureTask<byte[]> startReading(@NotNull InputStream is, @NotNull String threadName) {
+        FutureTask<byte[]> result = new FutureTask<>(() -> IOUtils.readFully(is).toByteArray());
+        Thread reader = new Thread(result, threadName);
+        reader.setDaemon(true);
+        reader.start();
+        return result;
+    }
+
+    @NotNull
+    private static String getOutput(@NotNull String command, @NotNull FutureTask<byte[]> output) throws IOException {
+        try {
+            return new String(output.get(), StandardCharsets.UTF_8);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Command " + command + " was interrupted");
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+        }
+    }
+
     @Override
     public void mkdir(@NotNull String fullRemotePath) throws IOException {
         ssh.getSftpClient().mkdirs(fullRemotePath);
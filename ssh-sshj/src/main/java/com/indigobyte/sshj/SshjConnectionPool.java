@@ -0,0 +1,280 @@
+package com.indigobyte.sshj;
+
+import net.schmizz.sshj.SSHClient;
+import net.schmizz.sshj.sftp.SFTPClient;
+import net.schmizz.sshj.transport.verification.PromiscuousVerifier;
+import org.apache.maven.plugin.logging.Log;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Authenticated SSH connections shared by all mojo executions of the build, keyed by host, port, user and key file.
+ * Plugin classes are loaded once per Maven session, so deploying several modules to the same host pays for the
+ * handshake and the SFTP subsystem startup only once. Every lease is checked to be still connected; connections idle
+ * for {@link #IDLE_TIMEOUT_MILLIS} are closed, the rest are closed when the JVM exits.
+ */
+class SshjConnectionPool {
+    private static final long IDLE_TIMEOUT_MILLIS = TimeUnit.MINUTES.toMillis(5);
+    private static final long EVICTION_PERIOD_MILLIS = TimeUnit.SECONDS.toMillis(30);
+    private static final SshjConnectionPool INSTANCE = new SshjConnectionPool();
+
+    @NotNull
+    private final Map<Key, Connection> connections = new HashMap<>();
+    @NotNull
+    private final Map<Key, FutureTask<Connection>> pendingConnections = new HashMap<>();
+    @Nullable
+    private ScheduledExecutorService evictor;
+
+    private SshjConnectionPool() {
+    }
+
+    @NotNull
+    static SshjConnectionPool getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Connects outside of the pool lock, so connections to different hosts are established at once; concurrent leases
+     * of the same key wait for the connection which is being established.
+     *
+     * @return connection which must be returned with {@link #release(Log, Connection)}
+     */
+    @NotNull
+    Connection lease(
+            @NotNull Log log,
+            @NotNull String hostName,
+            int port,
+            @NotNull String userName,
+            @NotNull String sshKeyFile
+    ) throws IOException {
+        Key key = new Key(hostName, port, userName, sshKeyFile);
+        while (true) {
+            FutureTask<Connection> connecting;
+            boolean connectingHere = false;
+            Connection brokenConnection = null;
+            synchronized (this) {
+                Connection connection = connections.get(key);
+                if (connection != null && !connection.isHealthy()) {
+                    log.info("Pooled connection to " + hostName + ":" + port + " is broken, reconnecting");
+                    connections.remove(key);
+                    brokenConnection = connection;
+                    connection = null;
+                }
+                if (connection != null) {
+                    log.info("Reusing pooled connection to " + hostName + ":" + port);
+                    ++connection.leaseCount;
+                    return connection;
+                }
+                connecting = pendingConnections.get(key);
+                if (connecting == null) {
+                    connecting = new FutureTask<>(() -> connect(log, key));
+                    pendingConnections.put(key, connecting);
+                    connectingHere = true;
+                }
+            }
+            if (brokenConnection != null) {
+                brokenConnection.close(log);
+            }
+            if (!connectingHere) {
+                // The connection is leased from the map once it's there
+                awaitConnection(connecting);
+                continue;
+            }
+            connecting.run();
+            synchronized (this) {
+                pendingConnections.remove(key);
+                Connection connection = awaitConnection(connecting);
+                connections.put(key, connection);
+                startEvictor();
+                ++connection.leaseCount;
+                return connection;
+            }
+        }
+    }
+
+    @NotNull
+    private static Connection connect(@NotNull Log log, @NotNull Key key) throws IOException {
+        SSHClient sshClient = new SSHClient();
+        sshClient.addHostKeyVerifier(new PromiscuousVerifier());
+        log.info("Connecting to " + key.hostName + ":" + key.port);
+        sshClient.connect(key.hostName, key.port);
+        try {
+            log.info("Authorization in progress");
+            sshClient.authPublickey(key.userName, key.sshKeyFile);
+        } catch (IOException e) {
+            sshClient.close();
+            throw e;
+        }
+        return new Connection(key, sshClient);
+    }
+
+    @NotNull
+    private static Connection awaitConnection(@NotNull FutureTask<Connection> connecting) throws IOException {
+        try {
+            return connecting.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Connecting was interrupted");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            throw new IOException(cause);
+        }
+    }
+
+    /**
+     * Returns the connection to the pool. Broken connections are closed at once.
+     */
+    synchronized void release(@NotNull Log log, @NotNull Connection connection) {
+        --connection.leaseCount;
+        connection.lastReleased = System.currentTimeMillis();
+        if (!connection.isHealthy() && connections.get(connection.key) == connection) {
+            connections.remove(connection.key);
+        }
+        if (connection.leaseCount <= 0 && !connections.containsValue(connection)) {
+            connection.close(log);
+        }
+    }
+
+    private void startEvictor() {
+        if (evictor != null) {
+            return;
+        }
+        evictor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "ssh-connection-pool-evictor");
+            thread.setDaemon(true);
+            return thread;
+        });
+        evictor.scheduleWithFixedDelay(this::evictIdleConnections, EVICTION_PERIOD_MILLIS, EVICTION_PERIOD_MILLIS, TimeUnit.MILLISECONDS);
+        Runtime.getRuntime().addShutdownHook(new Thread(this::closeAll, "ssh-connection-pool-shutdown"));
+    }
+
+    private synchronized void evictIdleConnections() {
+        long now = System.currentTimeMillis();
+        for (Iterator<Connection> it = connections.values().iterator(); it.hasNext(); ) {
+            Connection connection = it.next();
+            if (connection.leaseCount <= 0 && (now - connection.lastReleased >= IDLE_TIMEOUT_MILLIS || !connection.isHealthy())) {
+                it.remove();
+                connection.close(null);
+            }
+        }
+    }
+
+    private synchronized void closeAll() {
+        for (Connection connection : connections.values()) {
+            connection.close(null);
+        }
+        connections.clear();
+    }
+
+    static class Connection {
+        @NotNull
+        private final Key key;
+        @NotNull
+        private final SSHClient sshClient;
+        @Nullable
+        private SFTPClient sftpClient;
+        private int leaseCount;
+        private long lastReleased;
+
+        private Connection(@NotNull Key key, @NotNull SSHClient sshClient) {
+            this.key = key;
+            this.sshClient = sshClient;
+        }
+
+        @NotNull
+        SSHClient getSshClient() {
+            return sshClient;
+        }
+
+        /**
+         * @return SFTP channel shared by all leases of the connection; a closed channel is replaced with a new one
+         */
+        @NotNull
+        synchronized SFTPClient getSftpClient() throws IOException {
+            if (sftpClient != null && !sftpClient.getSFTPEngine().getSubsystem().isOpen()) {
+                try {
+                    sftpClient.close();
+                } catch (IOException ignored) {
+                    // The subsystem is already gone
+                } finally {
+                    sftpClient = null;
+                }
+            }
+            if (sftpClient == null) {
+                sftpClient = sshClient.newSFTPClient();
+            }
+            return sftpClient;
+        }
+
+        private boolean isHealthy() {
+            return sshClient.isConnected() && sshClient.isAuthenticated();
+        }
+
+        private synchronized void close(@Nullable Log log) {
+            try {
+                if (sftpClient != null) {
+                    sftpClient.close();
+                }
+                sshClient.close();
+            } catch (IOException e) {
+                if (log != null) {
+                    log.warn("An exception was thrown when pooled connection was being closed", e);
+                }
+            } finally {
+                sftpClient = null;
+            }
+        }
+    }
+
+    private static class Key {
+        @NotNull
+        private final String hostName;
+        private final int port;
+        @NotNull
+        private final String userName;
+        @NotNull
+        private final String sshKeyFile;
+
+        Key(@NotNull String hostName, int port, @NotNull String userName, @NotNull String sshKeyFile) {
+            this.hostName = hostName;
+            this.port = port;
+            this.userName = userName;
+            this.sshKeyFile = sshKeyFile;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (o == null || getClass() != o.getClass()) {
+                return false;
+            }
+            Key key = (Key) o;
+            return port == key.port &&
+                    hostName.equals(key.hostName) &&
+                    userName.equals(key.userName) &&
+                    sshKeyFile.equals(key.sshKeyFile);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(hostName, port, userName, sshKeyFile);
+        }
+    }
+}
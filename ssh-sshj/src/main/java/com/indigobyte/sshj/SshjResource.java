@@ -18,8 +18,10 @@ class SshjResource implements AutoCloseable {
     private final String userName;
     @NotNull
     private final String sshKeyFile;
+    private final boolean pooled;
     private SSHClient sshClient;
     private SFTPClient sftpClient;
+    private SshjConnectionPool.Connection pooledConnection;
 
     public SshjResource(
             @NotNull Log log,
@@ -27,16 +29,35 @@ class SshjResource implements AutoCloseable {
             int port,
             @NotNull String userName,
             @NotNull String sshKeyFile
+    ) {
+        this(log, hostName, port, userName, sshKeyFile, false);
+    }
+
+    /**
+     * @param pooled whether the connection must be leased from {@link SshjConnectionPool} and returned there on close
+     *               instead of being closed
+     */
+    public SshjResource(
+            @NotNull Log log,
+            @NotNull String hostName,
+            int port,
+            @NotNull String userName,
+            @NotNull String sshKeyFile,
+            boolean pooled
     ) {
         this.log = log;
         this.hostName = hostName;
         this.port = port;
         this.userName = userName;
         this.sshKeyFile = sshKeyFile;
+        this.pooled = pooled;
     }
 
     @NotNull
-    public SSHClient getSshClient() throws IOException {
+    public synchronized SSHClient getSshClient() throws IOException {
+        if (pooled) {
+            return leaseConnection().getSshClient();
+        }
         if (sshClient == null) {
             sshClient = new SSHClient();
             sshClient.addHostKeyVerifier(new PromiscuousVerifier());
@@ -49,15 +70,33 @@ class SshjResource implements AutoCloseable {
     }
 
     @NotNull
-    public SFTPClient getSftpClient() throws IOException {
+    public synchronized SFTPClient getSftpClient() throws IOException {
+        if (pooled) {
+            return leaseConnection().getSftpClient();
+        }
         if (sftpClient == null) {
             sftpClient = getSshClient().newSFTPClient();
         }
         return sftpClient;
     }
 
+    @NotNull
+    private SshjConnectionPool.Connection leaseConnection() throws IOException {
+        if (pooledConnection == null) {
+            pooledConnection = SshjConnectionPool.getInstance().lease(log, hostName, port, userName, sshKeyFile);
+        }
+        return pooledConnection;
+    }
+
     @Override
-    public void close() throws IOException {
+    public synchronized void close() throws IOException {
+        if (pooledConnection != null) {
+            try {
+                SshjConnectionPool.getInstance().release(log, pooledConnection);
+            } finally {
+                pooledConnection = null;
+            }
+        }
         if (sftpClient != null) {
             try {
                 sftpClient.close();
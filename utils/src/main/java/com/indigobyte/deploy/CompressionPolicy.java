@@ -0,0 +1,185 @@
+package com.indigobyte.deploy;
+
+import org.apache.maven.plugin.logging.Log;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+import java.util.zip.Deflater;
+
+/**
+ * Chooses how every file is compressed in deploy archives. Files which are already compressed, recognized by their
+ * extension or by the entropy of their first bytes, are stored. Other files are deflated with the level of the
+ * profile; in adaptive mode the level is chosen by measuring deflate speed and ratio on a sample of the archived files
+ * and minimizing the estimated time to compress and upload them over a link of the given bandwidth.
+ */
+public class CompressionPolicy {
+    public static final int STORE = 0;
+
+    private static final Set<String> COMPRESSED_EXTENSIONS = new HashSet<>(Arrays.asList(
+            "jar", "war", "ear", "zip", "gz", "tgz", "bz2", "xz", "7z", "rar", "br", "zst", "lz4",
+            "png", "jpg", "jpeg", "gif", "webp", "avif", "heic",
+            "woff", "woff2", "mp3", "mp4", "m4a", "ogg", "webm", "avi", "mov", "pdf"
+    ));
+    private static final int PROBE_SIZE = 4096;
+    /**
+     * Bits per byte above which the probed data is considered incompressible. Text is usually below 6.
+     */
+    private static final double INCOMPRESSIBLE_ENTROPY = 7.5;
+    private static final int SAMPLE_SIZE = 1024 * 1024;
+    private static final int[] CANDIDATE_LEVELS = {1, 3, 5, 7, 9};
+
+    @NotNull
+    private final Log log;
+    @NotNull
+    private final CompressionProfile profile;
+    private final long linkBytesPerSecond;
+    private int adaptiveLevel = -1;
+
+    /**
+     * @param linkBandwidth bandwidth of the link to the remote machine in megabits per second; used only in adaptive
+     *                      mode, if it's not positive, adaptive mode falls back to the best compression
+     */
+    public CompressionPolicy(@NotNull Log log, @NotNull CompressionProfile profile, int linkBandwidth) {
+        this.log = log;
+        this.profile = profile;
+        this.linkBytesPerSecond = linkBandwidth * 1000L * 1000L / 8;
+    }
+
+    /**
+     * @return deflate level for the file, {@link #STORE} if the file must be stored
+     */
+    public int getLevel(@NotNull Path file) throws IOException {
+        if (isCompressed(file)) {
+            return STORE;
+        }
+        switch (profile) {
+            case FASTEST:
+                return Deflater.BEST_SPEED;
+            case ADAPTIVE:
+                if (linkBytesPerSecond > 0) {
+                    synchronized (this) {
+                        if (adaptiveLevel < 0) {
+                            calibrate(file);
+                        }
+                        return adaptiveLevel;
+                    }
+                }
+                return Deflater.BEST_COMPRESSION;
+            default:
+                return Deflater.BEST_COMPRESSION;
+        }
+    }
+
+    /**
+     * Chooses the adaptive level using the beginnings of the files as a sample. Without calibration, the first file
+     * passed to {@link #getLevel(Path)} is used as the sample.
+     */
+    public synchronized void calibrate(@NotNull Iterable<Path> files) throws IOException {
+        if (profile != CompressionProfile.ADAPTIVE || linkBytesPerSecond <= 0 || adaptiveLevel >= 0) {
+            return;
+        }
+        byte[] sample = new byte[SAMPLE_SIZE];
+        int sampleLength = 0;
+        for (Path file : files) {
+            if (sampleLength == sample.length) {
+                break;
+            }
+            if (Files.isRegularFile(file) && !isCompressed(file)) {
+                sampleLength += readFully(file, sample, sampleLength, sample.length - sampleLength);
+            }
+        }
+        chooseLevel(sample, sampleLength);
+    }
+
+    private void calibrate(@NotNull Path file) throws IOException {
+        byte[] sample = new byte[SAMPLE_SIZE];
+        chooseLevel(sample, readFully(file, sample, 0, sample.length));
+    }
+
+    private void chooseLevel(@NotNull byte[] sample, int sampleLength) {
+        if (sampleLength < PROBE_SIZE) {
+            adaptiveLevel = 5; // Too little data to measure anything
+            return;
+        }
+        byte[] output = new byte[sampleLength + 1024];
+        double bestSecondsPerByte = Double.MAX_VALUE;
+        int bestLevel = Deflater.BEST_COMPRESSION;
+        StringBuilder measurements = new StringBuilder();
+        for (int level : CANDIDATE_LEVELS) {
+            Deflater deflater = new Deflater(level, true);
+            long start = System.nanoTime();
+            deflater.setInput(sample, 0, sampleLength);
+            deflater.finish();
+            long compressedLength = 0;
+            while (!deflater.finished()) {
+                compressedLength += deflater.deflate(output);
+            }
+            long nanos = Math.max(1, System.nanoTime() - start);
+            deflater.end();
+            // Archive is created before it's uploaded, so compression and transfer times add up
+            double secondsPerByte = nanos / 1e9 / sampleLength + (double) compressedLength / sampleLength / linkBytesPerSecond;
+            measurements.append(" level ").append(level).append(": ratio ")
+                    .append(String.format(Locale.ROOT, "%.2f", (double) compressedLength / sampleLength))
+                    .append(", ").append(sampleLength * 1000L / nanos).append(" MB/s;");
+            if (secondsPerByte < bestSecondsPerByte) {
+                bestSecondsPerByte = secondsPerByte;
+                bestLevel = level;
+            }
+        }
+        adaptiveLevel = bestLevel;
+        log.info("Adaptive compression level " + bestLevel + " was chosen for " + linkBytesPerSecond * 8 / 1000 / 1000 + " Mbit/s link." + measurements);
+    }
+
+    /**
+     * @return whether the file is already compressed and deflating it would only waste CPU
+     */
+    public static boolean isCompressed(@NotNull Path file) throws IOException {
+        String name = file.getFileName() == null ? "" : file.getFileName().toString();
+        int dot = name.lastIndexOf('.');
+        if (dot >= 0 && COMPRESSED_EXTENSIONS.contains(name.substring(dot + 1).toLowerCase(Locale.ROOT))) {
+            return true;
+        }
+        if (!Files.isRegularFile(file) || Files.size(file) < PROBE_SIZE) {
+            return false;
+        }
+        byte[] probe = new byte[PROBE_SIZE];
+        int length = readFully(file, probe, 0, probe.length);
+        return entropy(probe, length) > INCOMPRESSIBLE_ENTROPY;
+    }
+
+    /**
+     * @return Shannon entropy of the bytes in bits per byte
+     */
+    static double entropy(@NotNull byte[] bytes, int length) {
+        int[] counts = new int[256];
+        for (int i = 0; i < length; ++i) {
+            ++counts[bytes[i] & 0xFF];
+        }
+        double entropy = 0;
+        for (int count : counts) {
+            if (count > 0) {
+                double p = (double) count / length;
+                entropy -= p * Math.log(p);
+            }
+        }
+        return entropy / Math.log(2);
+    }
+
+    private static int readFully(@NotNull Path file, @NotNull byte[] buffer, int offset, int length) throws IOException {
+        int total = 0;
+        try (InputStream is = Files.newInputStream(file)) {
+            int read;
+            while (total < length && (read = is.read(buffer, offset + total, length - total)) != -1) {
+                total += read;
+            }
+        }
+        return total;
+    }
+}
@@ -0,0 +1,19 @@
+package com.indigobyte.deploy;
+
+/**
+ * How hard files which aren't already compressed are deflated in deploy archives.
+ */
+public enum CompressionProfile {
+    /**
+     * Lowest CPU usage, for fast links such as LAN targets.
+     */
+    FASTEST,
+    /**
+     * Smallest archive, for slow links.
+     */
+    SMALLEST,
+    /**
+     * Level chosen from measured deflate speed and the configured link bandwidth.
+     */
+    ADAPTIVE
+}
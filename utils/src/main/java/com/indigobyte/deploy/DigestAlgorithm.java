@@ -0,0 +1,260 @@
+package com.indigobyte.deploy;
+
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Digest algorithms which can be used for change detection. MD5 and SHA-256 can also be checked on the remote
+ * machine with coreutils; CRC32C and Murmur3 are non-cryptographic and much faster, so they are only suitable for
+ * change detection.
+ */
+public enum DigestAlgorithm {
+    MD5(1, "md5sum") {
+        @NotNull
+        @Override
+        public Sink newSink() {
+            return new MessageDigestSink(copyOf(MD5_PROTOTYPE));
+        }
+
+        @NotNull
+        @Override
+        Sink newThreadLocalSink() {
+            return new MessageDigestSink(MD5_DIGEST.get());
+        }
+    },
+    SHA256(2, "sha256sum") {
+        @NotNull
+        @Override
+        public Sink newSink() {
+            return new MessageDigestSink(copyOf(SHA256_PROTOTYPE));
+        }
+
+        @NotNull
+        @Override
+        Sink newThreadLocalSink() {
+            return new MessageDigestSink(SHA256_DIGEST.get());
+        }
+    },
+    CRC32C(3, null) {
+        @NotNull
+        @Override
+        public Sink newSink() {
+            java.util.zip.Checksum jdkCrc32c = newJdkCrc32c();
+            if (jdkCrc32c != null) {
+                return new ChecksumSink(jdkCrc32c);
+            }
+            return new HasherSink(GUAVA_CRC32C.newHasher());
+        }
+    },
+    MURMUR3_128(4, null) {
+        @NotNull
+        @Override
+        public Sink newSink() {
+            return new HasherSink(GUAVA_MURMUR3_128.newHasher());
+        }
+    };
+
+    private static final MessageDigest MD5_PROTOTYPE = getMessageDigest("MD5");
+    private static final MessageDigest SHA256_PROTOTYPE = getMessageDigest("SHA-256");
+    private static final ThreadLocal<MessageDigest> MD5_DIGEST = ThreadLocal.withInitial(() -> getMessageDigest("MD5"));
+    private static final ThreadLocal<MessageDigest> SHA256_DIGEST = ThreadLocal.withInitial(() -> getMessageDigest("SHA-256"));
+    private static final ThreadLocal<byte[]> SCRATCH = ThreadLocal.withInitial(() -> new byte[64 * 1024]);
+    private static final HashFunction GUAVA_CRC32C = Hashing.crc32c();
+    private static final HashFunction GUAVA_MURMUR3_128 = Hashing.murmur3_128();
+    @Nullable
+    private static final Class<?> JDK_CRC32C_CLASS = findJdkCrc32c();
+
+    private final int id;
+    @Nullable
+    private final String remoteCommand;
+
+    DigestAlgorithm(int id, @Nullable String remoteCommand) {
+        this.id = id;
+        this.remoteCommand = remoteCommand;
+    }
+
+    /**
+     * @return identifier of the algorithm which is stored in checksum manifests
+     */
+    public int getId() {
+        return id;
+    }
+
+    /**
+     * @return command which prints the digest of a file on the remote machine, or {@code null} if there's none
+     */
+    @Nullable
+    public String getRemoteCommand() {
+        return remoteCommand;
+    }
+
+    /**
+     * Creates a sink for a single digest calculation. Every sink has its own state, so several of them can be used
+     * at once; a sink must not be shared between threads.
+     */
+    @NotNull
+    public abstract Sink newSink();
+
+    /**
+     * Creates a sink which may reuse the digest of the current thread, so it's valid only until the next call on the
+     * same thread. Used for one-shot digests of files in {@link Utils}.
+     */
+    @NotNull
+    Sink newThreadLocalSink() {
+        return newSink();
+    }
+
+    @NotNull
+    public static DigestAlgorithm fromId(int id) {
+        for (DigestAlgorithm algorithm : values()) {
+            if (algorithm.id == id) {
+                return algorithm;
+            }
+        }
+        throw new IllegalArgumentException("Unknown digest algorithm id " + id);
+    }
+
+    public interface Sink {
+        void update(@NotNull byte[] bytes, int offset, int length);
+
+        void update(@NotNull ByteBuffer buffer);
+
+        @NotNull
+        byte[] finish();
+    }
+
+    @NotNull
+    private static MessageDigest getMessageDigest(@NotNull String algorithm) {
+        try {
+            return MessageDigest.getInstance(algorithm);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(algorithm + " is not supported", e);
+        }
+    }
+
+    @NotNull
+    private static MessageDigest copyOf(@NotNull MessageDigest prototype) {
+        try {
+            return (MessageDigest) prototype.clone();
+        } catch (CloneNotSupportedException e) {
+            return getMessageDigest(prototype.getAlgorithm());
+        }
+    }
+
+    @Nullable
+    private static Class<?> findJdkCrc32c() {
+        try {
+            return Class.forName("java.util.zip.CRC32C"); // Hardware accelerated, available since Java 9
+        } catch (ClassNotFoundException e) {
+            return null;
+        }
+    }
+
+    @Nullable
+    private static java.util.zip.Checksum newJdkCrc32c() {
+        if (JDK_CRC32C_CLASS == null) {
+            return null;
+        }
+        try {
+            return (java.util.zip.Checksum) JDK_CRC32C_CLASS.getDeclaredConstructor().newInstance();
+        } catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
+
+    private static class MessageDigestSink implements Sink {
+        @NotNull
+        private final MessageDigest md;
+
+        MessageDigestSink(@NotNull MessageDigest md) {
+            this.md = md;
+            md.reset();
+        }
+
+        @Override
+        public void update(@NotNull byte[] bytes, int offset, int length) {
+            md.update(bytes, offset, length);
+        }
+
+        @Override
+        public void update(@NotNull ByteBuffer buffer) {
+            md.update(buffer);
+        }
+
+        @NotNull
+        @Override
+        public byte[] finish() {
+            return md.digest();
+        }
+    }
+
+    private static class HasherSink implements Sink {
+        @NotNull
+        private final Hasher hasher;
+
+        HasherSink(@NotNull Hasher hasher) {
+            this.hasher = hasher;
+        }
+
+        @Override
+        public void update(@NotNull byte[] bytes, int offset, int length) {
+            hasher.putBytes(bytes, offset, length);
+        }
+
+        @Override
+        public void update(@NotNull ByteBuffer buffer) {
+            hasher.putBytes(buffer);
+        }
+
+        @NotNull
+        @Override
+        public byte[] finish() {
+            return hasher.hash().asBytes();
+        }
+    }
+
+    private static class ChecksumSink implements Sink {
+        @NotNull
+        private final java.util.zip.Checksum checksum;
+
+        ChecksumSink(@NotNull java.util.zip.Checksum checksum) {
+            this.checksum = checksum;
+        }
+
+        @Override
+        public void update(@NotNull byte[] bytes, int offset, int length) {
+            checksum.update(bytes, offset, length);
+        }
+
+        @Override
+        public void update(@NotNull ByteBuffer buffer) {
+            if (buffer.hasArray()) {
+                checksum.update(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+                ((Buffer) buffer).position(buffer.limit());
+                return;
+            }
+            byte[] scratch = SCRATCH.get();
+            while (buffer.hasRemaining()) {
+                int length = Math.min(scratch.length, buffer.remaining());
+                buffer.get(scratch, 0, length);
+                checksum.update(scratch, 0, length);
+            }
+        }
+
+        @NotNull
+        @Override
+        public byte[] finish() {
+            long value = checksum.getValue();
+            // Same byte order as Guava's HashCode, so digests don't depend on the JVM version
+            return new byte[]{(byte) value, (byte) (value >>> 8), (byte) (value >>> 16), (byte) (value >>> 24)};
+        }
+    }
+}
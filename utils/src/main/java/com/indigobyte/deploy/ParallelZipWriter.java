@@ -0,0 +1,343 @@
+package com.indigobyte.deploy;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+/**
+ * Writes a ZIP archive in a single pass. Entries are compressed on several threads into independent raw deflate
+ * streams and appended to the archive in order as soon as they are ready; the central directory is written once at
+ * the end. Compressed entries of files up to {@link #IN_MEMORY_LIMIT} are kept in memory, bigger ones in temporary
+ * files; entries waiting to be written hold at most {@link #MAX_PENDING_BYTES} of memory together.
+ * <p>
+ * ZIP64 isn't supported, so archives with too many entries or too much data must be written another way, see
+ * {@link #fits(Collection, Path)}.
+ */
+public class ParallelZipWriter {
+    private static final int IN_MEMORY_LIMIT = 1024 * 1024;
+    private static final long MAX_PENDING_BYTES = 32L * 1024 * 1024;
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final int MAX_ENTRIES = 0xFFFF;
+    private static final long MAX_SIZE = 0xFFFFFFFFL;
+    private static final int STORED = 0;
+    private static final int DEFLATED = 8;
+    private static final int UTF8_FLAG = 1 << 11;
+    private static final int VERSION = 20;
+
+    private ParallelZipWriter() {
+    }
+
+    /**
+     * @return whether the archive of the files can be written without ZIP64 extensions
+     */
+    public static boolean fits(@NotNull Collection<Path> files, @NotNull Path basePath) {
+        if (files.size() >= MAX_ENTRIES) {
+            return false;
+        }
+        long totalSize = 0;
+        for (Path file : files) {
+            totalSize += basePath.resolve(file).toFile().length() + 256;
+        }
+        // Deflate may slightly expand incompressible data
+        return totalSize + totalSize / 100 < MAX_SIZE;
+    }
+
+    /**
+     * @param files             paths of files and folders relative to {@code basePath}
+     * @param compressionPolicy chooses compression of every file; if {@code null}, all files are deflated with the
+     *                          best compression
+     */
+    public static void write(
+            @NotNull Collection<Path> files,
+            @NotNull Path basePath,
+            @NotNull Path archive,
+            @Nullable CompressionPolicy compressionPolicy,
+            int threadCount
+    ) throws IOException {
+        ExecutorService executor = threadCount > 1 ? Executors.newFixedThreadPool(threadCount, r -> {
+            Thread thread = new Thread(r, "zip-writer");
+            thread.setDaemon(true);
+            return thread;
+        }) : null;
+        Deque<Future<Entry>> pendingEntries = new ArrayDeque<>();
+        Deque<Long> pendingSizes = new ArrayDeque<>();
+        long pendingBytes = 0;
+        List<Entry> writtenEntries = new ArrayList<>(files.size());
+        try (CountingOutputStream out = new CountingOutputStream(new BufferedOutputStream(Files.newOutputStream(archive), BUFFER_SIZE))) {
+            for (Path file : files) {
+                if (executor == null) {
+                    writeEntry(out, compress(file, basePath, compressionPolicy), writtenEntries);
+                    continue;
+                }
+                // Entries kept in memory are at most as big as their files, plus a little for incompressible data
+                long memorySize = getMemorySize(basePath.resolve(file));
+                while (!pendingEntries.isEmpty() && (pendingEntries.size() >= threadCount * 4 || pendingBytes + memorySize > MAX_PENDING_BYTES)) {
+                    pendingBytes -= pendingSizes.poll();
+                    writeEntry(out, getEntry(pendingEntries.poll()), writtenEntries);
+                }
+                pendingEntries.add(executor.submit(() -> compress(file, basePath, compressionPolicy)));
+                pendingSizes.add(memorySize);
+                pendingBytes += memorySize;
+            }
+            while (!pendingEntries.isEmpty()) {
+                writeEntry(out, getEntry(pendingEntries.poll()), writtenEntries);
+            }
+            writeCentralDirectory(out, writtenEntries);
+        } finally {
+            if (executor != null) {
+                executor.shutdownNow();
+            }
+            for (Future<Entry> future : pendingEntries) {
+                if (!future.cancel(false) && future.isDone()) {
+                    try {
+                        future.get().deleteTempFile();
+                    } catch (Exception ignored) {
+                    }
+                }
+            }
+        }
+    }
+
+    private static long getMemorySize(@NotNull Path file) {
+        long size = file.toFile().length();
+        return size > IN_MEMORY_LIMIT ? 0 : size + size / 100 + 64;
+    }
+
+    @NotNull
+    private static Entry getEntry(@NotNull Future<Entry> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Archive creation was interrupted");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            throw cause instanceof IOException ? (IOException) cause : new IOException(cause);
+        }
+    }
+
+    @NotNull
+    private static Entry compress(
+            @NotNull Path relativePath,
+            @NotNull Path basePath,
+            @Nullable CompressionPolicy compressionPolicy
+    ) throws IOException {
+        Path file = basePath.resolve(relativePath);
+        String name = Utils.linuxPath(relativePath);
+        BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class);
+        long lastModified = attributes.lastModifiedTime().toMillis();
+        if (attributes.isDirectory()) {
+            return new Entry(name + "/", lastModified, STORED, 0, 0, 0, null, null);
+        }
+        int level = compressionPolicy == null ? Deflater.BEST_COMPRESSION : compressionPolicy.getLevel(file);
+        Path tempFile = attributes.size() > IN_MEMORY_LIMIT ? Files.createTempFile("zip-entry", ".tmp") : null;
+        try {
+            ByteArrayOutputStream memory = tempFile == null ? new ByteArrayOutputStream((int) Math.min(attributes.size() + 64, IN_MEMORY_LIMIT)) : null;
+            CRC32 crc = new CRC32();
+            long size = 0;
+            CountingOutputStream compressed = new CountingOutputStream(memory != null ? memory : new BufferedOutputStream(Files.newOutputStream(tempFile), BUFFER_SIZE));
+            Deflater deflater = level == CompressionPolicy.STORE ? null : new Deflater(level, true);
+            try (InputStream is = Files.newInputStream(file);
+                 OutputStream os = deflater == null ? compressed : new DeflaterOutputStream(compressed, deflater, BUFFER_SIZE)) {
+                byte[] buffer = new byte[BUFFER_SIZE];
+                int read;
+                while ((read = is.read(buffer)) != -1) {
+                    crc.update(buffer, 0, read);
+                    os.write(buffer, 0, read);
+                    size += read;
+                }
+            } finally {
+                if (deflater != null) {
+                    deflater.end();
+                }
+            }
+            return new Entry(
+                    name,
+                    lastModified,
+                    deflater == null ? STORED : DEFLATED,
+                    crc.getValue(),
+                    compressed.getCount(),
+                    size,
+                    memory,
+                    tempFile
+            );
+        } catch (IOException | RuntimeException e) {
+            if (tempFile != null) {
+                Files.deleteIfExists(tempFile);
+            }
+            throw e;
+        }
+    }
+
+    private static void writeEntry(@NotNull CountingOutputStream out, @NotNull Entry entry, @NotNull List<Entry> writtenEntries) throws IOException {
+        try {
+            if (out.getCount() > MAX_SIZE || entry.compressedSize > MAX_SIZE || entry.size > MAX_SIZE) {
+                throw new IOException("Archive requires ZIP64 extensions which aren't supported");
+            }
+            entry.offset = out.getCount();
+            byte[] name = entry.name.getBytes(StandardCharsets.UTF_8);
+            writeInt(out, 0x04034b50);
+            writeShort(out, VERSION);
+            writeShort(out, UTF8_FLAG);
+            writeShort(out, entry.method);
+            writeInt(out, entry.dosTime);
+            writeInt(out, (int) entry.crc);
+            writeInt(out, (int) entry.compressedSize);
+            writeInt(out, (int) entry.size);
+            writeShort(out, name.length);
+            writeShort(out, 0);
+            out.write(name);
+            if (entry.data != null) {
+                entry.data.writeTo(out);
+            } else if (entry.tempFile != null) {
+                Files.copy(entry.tempFile, out);
+            }
+            writtenEntries.add(entry);
+        } finally {
+            // Only the header is needed for the central directory
+            entry.data = null;
+            entry.deleteTempFile();
+        }
+    }
+
+    private static void writeCentralDirectory(@NotNull CountingOutputStream out, @NotNull List<Entry> entries) throws IOException {
+        long start = out.getCount();
+        for (Entry entry : entries) {
+            byte[] name = entry.name.getBytes(StandardCharsets.UTF_8);
+            writeInt(out, 0x02014b50);
+            writeShort(out, VERSION);
+            writeShort(out, VERSION);
+            writeShort(out, UTF8_FLAG);
+            writeShort(out, entry.method);
+            writeInt(out, entry.dosTime);
+            writeInt(out, (int) entry.crc);
+            writeInt(out, (int) entry.compressedSize);
+            writeInt(out, (int) entry.size);
+            writeShort(out, name.length);
+            writeShort(out, 0); // Extra field length
+            writeShort(out, 0); // Comment length
+            writeShort(out, 0); // Disk number
+            writeShort(out, 0); // Internal attributes
+            writeInt(out, 0); // External attributes
+            writeInt(out, (int) entry.offset);
+            out.write(name);
+        }
+        long size = out.getCount() - start;
+        if (start + size > MAX_SIZE) {
+            throw new IOException("Archive requires ZIP64 extensions which aren't supported");
+        }
+        writeInt(out, 0x06054b50);
+        writeShort(out, 0);
+        writeShort(out, 0);
+        writeShort(out, entries.size());
+        writeShort(out, entries.size());
+        writeInt(out, (int) size);
+        writeInt(out, (int) start);
+        writeShort(out, 0);
+    }
+
+    private static void writeShort(@NotNull OutputStream out, int value) throws IOException {
+        out.write(value & 0xFF);
+        out.write((value >>> 8) & 0xFF);
+    }
+
+    private static void writeInt(@NotNull OutputStream out, int value) throws IOException {
+        writeShort(out, value & 0xFFFF);
+        writeShort(out, (value >>> 16) & 0xFFFF);
+    }
+
+    private static int toDosTime(long millis) {
+        LocalDateTime time = LocalDateTime.ofInstant(Instant.ofEpochMilli(millis), ZoneId.systemDefault());
+        if (time.getYear() < 1980) {
+            return (1 << 21) | (1 << 16);
+        }
+        return (time.getYear() - 1980) << 25
+                | time.getMonthValue() << 21
+                | time.getDayOfMonth() << 16
+                | time.getHour() << 11
+                | time.getMinute() << 5
+                | time.getSecond() >> 1;
+    }
+
+    private static class Entry {
+        @NotNull
+        private final String name;
+        private final int dosTime;
+        private final int method;
+        private final long crc;
+        private final long compressedSize;
+        private final long size;
+        @Nullable
+        private ByteArrayOutputStream data;
+        @Nullable
+        private final Path tempFile;
+        private long offset;
+
+        Entry(
+                @NotNull String name,
+                long lastModified,
+                int method,
+                long crc,
+                long compressedSize,
+                long size,
+                @Nullable ByteArrayOutputStream data,
+                @Nullable Path tempFile
+        ) {
+            this.name = name;
+            this.dosTime = toDosTime(lastModified);
+            this.method = method;
+            this.crc = crc;
+            this.compressedSize = compressedSize;
+            this.size = size;
+            this.data = data;
+            this.tempFile = tempFile;
+        }
+
+        void deleteTempFile() throws IOException {
+            if (tempFile != null) {
+                Files.deleteIfExists(tempFile);
+            }
+        }
+    }
+
+    private static class CountingOutputStream extends FilterOutputStream {
+        private long count;
+
+        CountingOutputStream(@NotNull OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            ++count;
+        }
+
+        @Override
+        public void write(@NotNull byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            count += len;
+        }
+
+        long getCount() {
+            return count;
+        }
+    }
+}
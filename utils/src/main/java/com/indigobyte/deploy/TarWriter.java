@@ -0,0 +1,154 @@
+package com.indigobyte.deploy;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Arrays;
+
+/**
+ * Writes a POSIX tar stream on the fly. Names which don't fit into the ustar header and sizes of 8 GB and more are
+ * stored in PAX extended headers, which are understood by GNU and BusyBox tar.
+ */
+public class TarWriter {
+    private static final int BLOCK_SIZE = 512;
+    private static final long MAX_OCTAL_SIZE = 077777777777L;
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    @NotNull
+    private final OutputStream out;
+    @NotNull
+    private final byte[] buffer = new byte[BUFFER_SIZE];
+
+    public TarWriter(@NotNull OutputStream out) {
+        this.out = out;
+    }
+
+    /**
+     * Adds a file or a folder. Contents of files are passed to the sink, if there is one, as they are written.
+     */
+    public void add(@NotNull Path file, @NotNull String name, @Nullable DigestAlgorithm.Sink sink) throws IOException {
+        BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class);
+        long mtime = attributes.lastModifiedTime().toMillis() / 1000;
+        if (attributes.isDirectory()) {
+            writeHeader(name.endsWith("/") ? name : name + "/", 0755, 0, mtime, '5');
+            return;
+        }
+        long size = attributes.size();
+        writeHeader(name, 0644, size, mtime, '0');
+        long written = 0;
+        try (InputStream is = Files.newInputStream(file)) {
+            int read;
+            while (written < size && (read = is.read(buffer, 0, (int) Math.min(buffer.length, size - written))) != -1) {
+                out.write(buffer, 0, read);
+                if (sink != null) {
+                    sink.update(buffer, 0, read);
+                }
+                written += read;
+            }
+        }
+        if (written != size) {
+            throw new IOException("File " + file + " was modified while it was being added to tar stream");
+        }
+        pad(size);
+    }
+
+    /**
+     * Writes the end of archive marker. The underlying stream isn't closed.
+     */
+    public void finish() throws IOException {
+        out.write(new byte[BLOCK_SIZE * 2]);
+        out.flush();
+    }
+
+    private void writeHeader(@NotNull String name, int mode, long size, long mtime, char type) throws IOException {
+        byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+        boolean longName = nameBytes.length > 100 || nameBytes.length != name.length();
+        boolean bigFile = size > MAX_OCTAL_SIZE;
+        if (longName || bigFile) {
+            StringBuilder records = new StringBuilder();
+            if (longName) {
+                records.append(paxRecord("path", name));
+            }
+            if (bigFile) {
+                records.append(paxRecord("size", Long.toString(size)));
+            }
+            byte[] paxData = records.toString().getBytes(StandardCharsets.UTF_8);
+            writeUstarHeader(asciiName(name), 0644, paxData.length, mtime, 'x');
+            out.write(paxData);
+            pad(paxData.length);
+        }
+        writeUstarHeader(longName ? asciiName(name) : name, mode, bigFile ? 0 : size, mtime, type);
+    }
+
+    private void writeUstarHeader(@NotNull String name, int mode, long size, long mtime, char type) throws IOException {
+        byte[] header = new byte[BLOCK_SIZE];
+        put(header, 0, 100, name);
+        putOctal(header, 100, 8, mode);
+        putOctal(header, 108, 8, 0);
+        putOctal(header, 116, 8, 0);
+        putOctal(header, 124, 12, size);
+        putOctal(header, 136, 12, mtime);
+        Arrays.fill(header, 148, 156, (byte) ' ');
+        header[156] = (byte) type;
+        put(header, 257, 6, "ustar");
+        put(header, 263, 2, "00");
+        int checksum = 0;
+        for (byte b : header) {
+            checksum += b & 0xFF;
+        }
+        putOctal(header, 148, 7, checksum);
+        out.write(header);
+    }
+
+    /**
+     * @return ASCII name no longer than 100 characters to put into the ustar header of an entry with a PAX name
+     */
+    @NotNull
+    private static String asciiName(@NotNull String name) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < name.length() && sb.length() < 99; ++i) {
+            char c = name.charAt(i);
+            sb.append(c < 0x80 ? c : '_');
+        }
+        return sb.toString();
+    }
+
+    @NotNull
+    private static String paxRecord(@NotNull String key, @NotNull String value) {
+        int payloadLength = (" " + key + "=" + value + "\n").getBytes(StandardCharsets.UTF_8).length;
+        // Length of the record includes the length field itself
+        int length = payloadLength + Integer.toString(payloadLength).length();
+        if (Integer.toString(length).length() != Integer.toString(payloadLength).length()) {
+            ++length;
+        }
+        return length + " " + key + "=" + value + "\n";
+    }
+
+    private static void put(@NotNull byte[] header, int offset, int length, @NotNull String value) {
+        byte[] bytes = value.getBytes(StandardCharsets.US_ASCII);
+        System.arraycopy(bytes, 0, header, offset, Math.min(length, bytes.length));
+    }
+
+    private static void putOctal(@NotNull byte[] header, int offset, int length, long value) {
+        String octal = Long.toOctalString(value);
+        StringBuilder sb = new StringBuilder();
+        for (int i = octal.length(); i < length - 1; ++i) {
+            sb.append('0');
+        }
+        put(header, offset, length - 1, sb.append(octal).toString());
+    }
+
+    private void pad(long size) throws IOException {
+        int remainder = (int) (size % BLOCK_SIZE);
+        if (remainder != 0) {
+            out.write(new byte[BLOCK_SIZE - remainder]);
+        }
+    }
+}
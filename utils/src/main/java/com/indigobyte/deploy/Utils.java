@@ -9,41 +9,117 @@ import net.lingala.zip4j.model.enums.CompressionLevel;
 import net.lingala.zip4j.model.enums.CompressionMethod;
 import org.apache.maven.plugin.logging.Log;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
 import java.io.IOException;
 import java.io.InputStream;
-import java.nio.file.Files;
-import java.nio.file.Path;
-import java.nio.file.Paths;
-import java.security.DigestInputStream;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.util.*;
 import java.util.jar.JarEntry;
 import java.util.jar.JarFile;
 
 public class Utils {
     public static final int MAX_SHOW_FILE_COUNT = 10;
+    /**
+     * Files of at least this size are hashed through memory mapping, smaller ones are read into a direct buffer.
+     */
+    private static final long MMAP_THRESHOLD = 1024 * 1024;
+    private static final long MMAP_WINDOW = 256L * 1024 * 1024;
+    private static final int DIRECT_BUFFER_SIZE = 64 * 1024;
+
+    private static final ThreadLocal<ByteBuffer> DIRECT_BUFFER = ThreadLocal.withInitial(() -> ByteBuffer.allocateDirect(DIRECT_BUFFER_SIZE));
 
     public static void createAchive(
             @NotNull Set<Path> filenames,
             @NotNull Path basePath,
             @NotNull String outFilename
+    ) throws IOException {
+        createAchive(filenames, basePath, outFilename, null);
+    }
+
+    public static void createAchive(
+            @NotNull Set<Path> filenames,
+            @NotNull Path basePath,
+            @NotNull String outFilename,
+            @Nullable CompressionPolicy compressionPolicy
+    ) throws IOException {
+        createAchive(filenames, basePath, outFilename, compressionPolicy, 1);
+    }
+
+    /**
+     * @param compressionPolicy chooses compression of every file; if {@code null}, all files are deflated with the
+     *                          best compression
+     * @param threadCount       number of threads compressing entries, all available processors if not positive
+     */
+    public static void createAchive(
+            @NotNull Set<Path> filenames,
+            @NotNull Path basePath,
+            @NotNull String outFilename,
+            @Nullable CompressionPolicy compressionPolicy,
+            int threadCount
     ) throws IOException {
         Files.deleteIfExists(Paths.get(outFilename)); // We have to delete the empty file, otherwise ZipFile constructor will fail on empty file because it'll think it's an invalid ZIP file
+        if (compressionPolicy != null) {
+            List<Path> files = new ArrayList<>(filenames.size());
+            for (Path filePath : filenames) {
+                files.add(basePath.resolve(filePath));
+            }
+            compressionPolicy.calibrate(files);
+        }
         ZipFile zipFile = new ZipFile(outFilename);
+        if (ParallelZipWriter.fits(filenames, basePath)) {
+            ParallelZipWriter.write(
+                    filenames,
+                    basePath,
+                    Paths.get(outFilename),
+                    compressionPolicy,
+                    threadCount > 0 ? threadCount : Runtime.getRuntime().availableProcessors()
+            );
+        } else {
+            // Too big for a plain ZIP archive, zip4j writes ZIP64 extensions
+            addFiles(zipFile, filenames, basePath, compressionPolicy);
+        }
+        if (!zipFile.isValidZipFile()) {
+            throw new IllegalStateException("File " + outFilename + " is not a valid ZIP file");
+        }
+    }
+
+    private static void addFiles(
+            @NotNull ZipFile zipFile,
+            @NotNull Set<Path> filenames,
+            @NotNull Path basePath,
+            @Nullable CompressionPolicy compressionPolicy
+    ) throws IOException {
         for (Path filePath : filenames) {
             String fileToCopy = filePath.toString().replace('\\', '/');
             ZipParameters zipParameters = new ZipParameters();
             zipParameters.setFileNameInZip(fileToCopy);
-            zipParameters.setCompressionLevel(CompressionLevel.ULTRA);
-            zipParameters.setCompressionMethod(CompressionMethod.DEFLATE);
+            int level = compressionPolicy == null
+                    ? CompressionLevel.ULTRA.getLevel()
+                    : compressionPolicy.getLevel(basePath.resolve(fileToCopy));
+            if (level == CompressionPolicy.STORE) {
+                zipParameters.setCompressionMethod(CompressionMethod.STORE);
+            } else {
+                zipParameters.setCompressionLevel(toCompressionLevel(level));
+                zipParameters.setCompressionMethod(CompressionMethod.DEFLATE);
+            }
             zipParameters.setOverrideExistingFilesInZip(false);
             zipFile.addFile(basePath.resolve(fileToCopy).toFile(), zipParameters);
         }
-        if (!zipFile.isValidZipFile()) {
-            throw new IllegalStateException("File " + outFilename + " is not a valid ZIP file");
+    }
+
+    @NotNull
+    private static CompressionLevel toCompressionLevel(int level) {
+        for (CompressionLevel compressionLevel : CompressionLevel.values()) {
+            if (compressionLevel.getLevel() >= level) {
+                return compressionLevel;
+            }
         }
+        return CompressionLevel.ULTRA;
     }
 
     @NotNull
@@ -56,6 +132,14 @@ public class Utils {
         return path.replace('\\', '/');
     }
 
+    /**
+     * Quotes the value for a POSIX shell, so that it's passed to a remote command as a single argument.
+     */
+    @NotNull
+    public static String shellQuote(@NotNull String value) {
+        return "'" + value.replace("'", "'\\''") + "'";
+    }
+
     public static String getHex(byte[] bytes) {
         StringBuilder result = new StringBuilder();
 
@@ -65,6 +149,23 @@ public class Utils {
         return result.toString();
     }
 
+    @NotNull
+    public static byte[] fromHex(@NotNull String hex) {
+        if (hex.length() % 2 != 0) {
+            throw new IllegalArgumentException("Hex string has odd length: " + hex);
+        }
+        byte[] result = new byte[hex.length() / 2];
+        for (int i = 0; i < result.length; ++i) {
+            int hi = Character.digit(hex.charAt(i * 2), 16);
+            int lo = Character.digit(hex.charAt(i * 2 + 1), 16);
+            if (hi < 0 || lo < 0) {
+                throw new IllegalArgumentException("Invalid hex string: " + hex);
+            }
+            result[i] = (byte) ((hi << 4) | lo);
+        }
+        return result;
+    }
+
     @NotNull
     public static TreeMap<String, Long> getCrc32OfJarFile(@NotNull Path filePath) throws IOException {
         TreeMap<String, Long> crcMap = new TreeMap<>();
@@ -104,28 +205,55 @@ public class Utils {
 
     @NotNull
     public static String getDigest(@NotNull Path filePath) throws IOException {
-        if (filePath.toFile().exists() && filePath.toFile().isFile()) {
-            try (InputStream is = Files.newInputStream(filePath)) {
-                return getDigest(is);
-            }
-        } else {
+        return getDigest(filePath, DigestAlgorithm.MD5);
+    }
+
+    @NotNull
+    public static String getDigest(@NotNull Path filePath, @NotNull DigestAlgorithm algorithm) throws IOException {
+        BasicFileAttributes attributes;
+        try {
+            attributes = Files.readAttributes(filePath, BasicFileAttributes.class);
+        } catch (NoSuchFileException e) {
+            return "It's a folder";
+        }
+        if (!attributes.isRegularFile()) {
             return "It's a folder";
         }
+        DigestAlgorithm.Sink sink = algorithm.newThreadLocalSink();
+        try (FileChannel channel = FileChannel.open(filePath, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size >= MMAP_THRESHOLD) {
+                for (long position = 0; position < size; position += MMAP_WINDOW) {
+                    sink.update(channel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(MMAP_WINDOW, size - position)));
+                }
+            } else {
+                ByteBuffer buffer = DIRECT_BUFFER.get();
+                ((Buffer) buffer).clear();
+                while (channel.read(buffer) != -1) {
+                    ((Buffer) buffer).flip();
+                    sink.update(buffer);
+                    ((Buffer) buffer).clear();
+                }
+            }
+        }
+        return Utils.getHex(sink.finish());
     }
 
     @NotNull
     public static String getDigest(@NotNull InputStream is) throws IOException {
+        return getDigest(is, DigestAlgorithm.MD5);
+    }
+
+    @NotNull
+    public static String getDigest(@NotNull InputStream is, @NotNull DigestAlgorithm algorithm) throws IOException {
         byte[] buffer = new byte[8192];
-        MessageDigest md = null;
-        try {
-            md = MessageDigest.getInstance("MD5");
-        } catch (NoSuchAlgorithmException e) {
-            e.printStackTrace();
-        }
-        try (DigestInputStream dis = new DigestInputStream(is, md)) {
-            while (dis.read(buffer) != -1) {
+        DigestAlgorithm.Sink sink = algorithm.newSink();
+        try (InputStream closeable = is) {
+            int read;
+            while ((read = closeable.read(buffer)) != -1) {
+                sink.update(buffer, 0, read);
             }
-            return Utils.getHex(md.digest());
+            return Utils.getHex(sink.finish());
         }
     }
 